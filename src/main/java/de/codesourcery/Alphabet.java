@@ -1,28 +1,42 @@
 package de.codesourcery;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 
 /**
  * The alphabet is a set of symbols containing both elements that can be replaced (variables)
  * and those which cannot be replaced ("constants" or "terminals").
  *
+ * Each symbol gets assigned a dense, zero-based id by the alphabet that created it so that
+ * derived strings can be stored as primitive arrays (see {@link SymbolString}).
+ * Symbols are interned per alphabet, asking for the same character twice yields the same instance.
+ *
  * @author tobias.gierke@code-sourcery.de
  */
 public class Alphabet
 {
+    /**
+     * Max. number of symbols an alphabet may hold, symbol ids need to fit into a byte.
+     */
+    public static final int MAX_SYMBOLS = 256;
+
+    private final List<Symbol> symbols = new ArrayList<>();
+    private final Map<Character,Symbol> symbolsByChar = new HashMap<>();
+
     public static class Symbol {
 
         public final char symbol;
+        public final int id;
+        private final Alphabet alphabet;
         private final boolean isConstant;
 
-        public Symbol(char symbol) {
-            this( symbol, false );
-        }
-
-        public Symbol(char symbol, boolean isConstant)
+        private Symbol(Alphabet alphabet, int id, char symbol, boolean isConstant)
         {
+            this.alphabet = alphabet;
+            this.id = id;
             this.symbol = symbol;
             this.isConstant = isConstant;
         }
@@ -31,8 +45,16 @@ public class Alphabet
             return isConstant;
         }
 
+        public Alphabet alphabet() {
+            return alphabet;
+        }
+
         public boolean matches(Symbol other) {
-            return this == other || (this.symbol == other.symbol && this.isConstant == other.isConstant);
+            return this == other;
+        }
+
+        public boolean matches(int symbolId) {
+            return this.id == symbolId;
         }
 
         @Override
@@ -40,23 +62,82 @@ public class Alphabet
         {
             return String.valueOf( symbol );
         }
+    }
+
+    public Symbol symbol(char c) {
+        return register( c, false );
+    }
+
+    public Symbol constant(char c) {
+        return register( c, true );
+    }
 
-        public static Symbol symbol(char c) {
-            return new Symbol( c );
+    private Symbol register(char c, boolean isConstant)
+    {
+        final Symbol existing = symbolsByChar.get( c );
+        if ( existing != null )
+        {
+            if ( existing.isConstant != isConstant ) {
+                throw new IllegalArgumentException( "Symbol '" + c + "' is already registered as a " + (existing.isConstant ? "constant" : "variable") );
+            }
+            return existing;
         }
-        public static Symbol constant(char c) {
-            return new Symbol( c, true );
+        if ( symbols.size() >= MAX_SYMBOLS ) {
+            throw new IllegalStateException( "Alphabet cannot hold more than " + MAX_SYMBOLS + " symbols" );
         }
+        final Symbol result = new Symbol( this, symbols.size(), c, isConstant );
+        symbols.add( result );
+        symbolsByChar.put( c, result );
+        return result;
     }
 
-    public static List<Symbol> parse(String s, Function<Character,Symbol> lookup) {
+    /**
+     * Looks up a symbol by character.
+     *
+     * @param c
+     * @return
+     * @throws IllegalArgumentException if this alphabet has no such symbol
+     */
+    public Symbol lookup(char c)
+    {
+        final Symbol result = symbolsByChar.get( c );
+        if ( result == null ) {
+            throw new IllegalArgumentException( "Unknown symbol >" + c + "<" );
+        }
+        return result;
+    }
+
+    /**
+     * Returns the symbol with a given id.
+     *
+     * @param id
+     * @return
+     */
+    public Symbol get(int id) {
+        return symbols.get( id );
+    }
+
+    /**
+     * Returns the number of symbols in this alphabet.
+     *
+     * @return
+     */
+    public int size() {
+        return symbols.size();
+    }
+
+    public SymbolString parse(String s) {
+        return parse( s, this::lookup );
+    }
+
+    public SymbolString parse(String s, Function<Character,Symbol> lookup) {
 
         s = s.trim().replaceAll( " ", "" );
-        final List<Symbol> result = new ArrayList<>();
+        final SymbolString.Builder result = new SymbolString.Builder( this, s.length() );
         for ( final char c : s.toCharArray() )
         {
-            result.add( lookup.apply( c ) );
+            result.append( lookup.apply( c ) );
         }
-        return result;
+        return result.build();
     }
 }
@@ -0,0 +1,95 @@
+package de.codesourcery;
+
+import java.util.List;
+
+/**
+ * Weighted alternative successors of a stochastic production.
+ *
+ * The alternative to use is drawn from a counter-based random number generator keyed by
+ * (seed, iteration, position) instead of a stateful one, so the result does not depend on the
+ * order in which positions get rewritten and is identical for sequential and parallel derivations.
+ */
+final class Alternatives
+{
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final byte[][] successors;
+    // cumulative weights, normalized so the last one is 1
+    private final double[] thresholds;
+
+    Alternatives(List<ProductionRule> rules)
+    {
+        successors = new byte[ rules.size() ][];
+        thresholds = new double[ rules.size() ];
+        double sum = 0;
+        for ( int i = 0; i < rules.size(); i++ )
+        {
+            successors[i] = rules.get( i ).replacement.toByteArray();
+            sum += rules.get( i ).weight;
+            thresholds[i] = sum;
+        }
+        for ( int i = 0; i < thresholds.length; i++ ) {
+            thresholds[i] /= sum;
+        }
+    }
+
+    boolean isStochastic() {
+        return successors.length > 1;
+    }
+
+    /**
+     * Returns the first alternative.
+     *
+     * @return
+     */
+    byte[] first() {
+        return successors[0];
+    }
+
+    /**
+     * Picks an alternative.
+     *
+     * @param seed
+     * @param iteration
+     * @param position index of the predecessor in the string being rewritten
+     * @return successor symbol ids
+     */
+    byte[] choose(long seed, int iteration, long position)
+    {
+        if ( successors.length == 1 ) {
+            return successors[0];
+        }
+        final double value = random( seed, iteration, position );
+        for ( int i = 0, last = thresholds.length - 1; i < last; i++ )
+        {
+            if ( value < thresholds[i] ) {
+                return successors[i];
+            }
+        }
+        return successors[ successors.length - 1 ];
+    }
+
+    /**
+     * Returns a uniformly distributed value in [0,1) that only depends on its arguments.
+     *
+     * @param seed
+     * @param iteration
+     * @param position
+     * @return
+     */
+    static double random(long seed, int iteration, long position)
+    {
+        final long key = mix( mix( seed + iteration * GOLDEN_GAMMA ) + position * GOLDEN_GAMMA );
+        return (key >>> 11) * 0x1.0p-53;
+    }
+
+    /*
+     * SplitMix64 finalizer.
+     */
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,293 @@
+package de.codesourcery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Matches context-sensitive productions (2L/IL systems) against a string.
+ *
+ * All left contexts of the rule set are compiled into one trie (read right-to-left, starting next to the predecessor)
+ * and all right contexts into another one (read left-to-right), with one root per predecessor symbol.
+ * Each trie node knows which rules have a context ending there, so matching a position is a single walk
+ * along its neighbours through both automata, collecting bit masks of the rules whose context matched.
+ * The cost per position is bounded by the longest context, no matter how many context rules there are.
+ *
+ * Neighbours are determined in a branch-aware way: when looking for the left context, complete branches
+ * (<code>[...]</code>) are skipped and the start of a branch continues with the symbol preceding it;
+ * when looking for the right context, nested branches are skipped and the end of a branch ends the context.
+ * Symbols marked as ignored never take part in context matching.
+ *
+ * Rules with the same predecessor and identical contexts form a group of (stochastic) {@link Alternatives}.
+ */
+final class ContextMatcher
+{
+    /**
+     * Max. number of distinct contexts per predecessor symbol.
+     */
+    static final int MAX_CONTEXTS_PER_SYMBOL = 64;
+
+    private final int symbolCount;
+    private final boolean[] isIgnored;
+    private final int branchOpen;
+    private final int branchClose;
+
+    // trie root node per predecessor symbol, -1 if the symbol has no context-sensitive rules
+    private final int[] leftRoot;
+    private final int[] rightRoot;
+
+    private final Trie left = new Trie();
+    private final Trie right = new Trie();
+
+    // successors of context-sensitive rules, indexed by predecessor symbol id and rule group bit
+    private final Alternatives[][] candidates;
+
+    private static final class Trie
+    {
+        // next[node * symbolCount + symbol] is the child node, 0 if there is none (the root is never a child)
+        private int[] next = new int[0];
+        private long[] accept = new long[0];
+        private int nodeCount;
+
+        int newNode(int symbolCount)
+        {
+            if ( nodeCount == accept.length )
+            {
+                final int newSize = Math.max( 8, nodeCount * 2 );
+                final int[] tmpNext = new int[ newSize * symbolCount ];
+                System.arraycopy( next, 0, tmpNext, 0, next.length );
+                next = tmpNext;
+                final long[] tmpAccept = new long[ newSize ];
+                System.arraycopy( accept, 0, tmpAccept, 0, accept.length );
+                accept = tmpAccept;
+            }
+            return nodeCount++;
+        }
+
+        void add(int root, int[] path, int symbolCount, long ruleBit)
+        {
+            int node = root;
+            for ( final int symbol : path )
+            {
+                int child = next[ node * symbolCount + symbol ];
+                if ( child == 0 ) {
+                    child = newNode( symbolCount );
+                    next[ node * symbolCount + symbol ] = child;
+                }
+                node = child;
+            }
+            accept[node] |= ruleBit;
+        }
+    }
+
+    ContextMatcher(Alphabet alphabet, List<ProductionRule> rules, boolean[] isIgnored, int branchOpen, int branchClose)
+    {
+        this.symbolCount = alphabet.size();
+        this.isIgnored = isIgnored;
+        this.branchOpen = branchOpen;
+        this.branchClose = branchClose;
+        this.leftRoot = new int[ symbolCount ];
+        this.rightRoot = new int[ symbolCount ];
+        this.candidates = new Alternatives[ symbolCount ][];
+
+        // group rules by predecessor and contexts
+        final List<List<List<ProductionRule>>> groupsBySymbol = new ArrayList<>();
+        for ( int i = 0; i < symbolCount; i++ ) {
+            groupsBySymbol.add( new ArrayList<>() );
+        }
+outer:
+        for ( final ProductionRule rule : rules )
+        {
+            if ( ! rule.isContextSensitive() || rule.expected.isConstant() ) {
+                continue;
+            }
+            final List<List<ProductionRule>> groups = groupsBySymbol.get( rule.expected.id );
+            for ( final List<ProductionRule> group : groups )
+            {
+                if ( group.get( 0 ).isAlternativeOf( rule ) ) {
+                    group.add( rule );
+                    continue outer;
+                }
+            }
+            groups.add( new ArrayList<>( List.of( rule ) ) );
+        }
+
+        for ( int id = 0; id < symbolCount; id++ )
+        {
+            final List<List<ProductionRule>> groups = groupsBySymbol.get( id );
+            if ( groups.isEmpty() ) {
+                leftRoot[id] = rightRoot[id] = -1;
+                continue;
+            }
+            if ( groups.size() > MAX_CONTEXTS_PER_SYMBOL ) {
+                throw new IllegalArgumentException( "Symbol " + alphabet.get( id ) + " has more than " + MAX_CONTEXTS_PER_SYMBOL + " distinct contexts" );
+            }
+            leftRoot[id] = left.newNode( symbolCount );
+            rightRoot[id] = right.newNode( symbolCount );
+            candidates[id] = new Alternatives[ groups.size() ];
+            for ( int i = 0; i < groups.size(); i++ )
+            {
+                final ProductionRule rule = groups.get( i ).get( 0 );
+                final long bit = 1L << i;
+                candidates[id][i] = new Alternatives( ProductionRules.alternatives( groups.get( i ) ) );
+
+                // left context is read backwards, starting with the symbol next to the predecessor
+                final int[] leftPath = new int[ rule.leftContext.length() ];
+                for ( int j = 0; j < leftPath.length; j++ ) {
+                    leftPath[j] = rule.leftContext.get( leftPath.length - 1 - j );
+                }
+                left.add( leftRoot[id], leftPath, symbolCount, bit );
+
+                final int[] rightPath = new int[ rule.rightContext.length() ];
+                for ( int j = 0; j < rightPath.length; j++ ) {
+                    rightPath[j] = rule.rightContext.get( j );
+                }
+                right.add( rightRoot[id], rightPath, symbolCount, bit );
+            }
+        }
+    }
+
+    /**
+     * Pairs up branch symbols.
+     *
+     * @param data
+     * @param length
+     * @return index of the matching branch symbol for each branch symbol, -1 for unmatched ones, <code>null</code> if no branch symbols are configured
+     */
+    int[] matchBranches(byte[] data, int length)
+    {
+        if ( branchOpen < 0 || branchClose < 0 ) {
+            return null;
+        }
+        final int[] result = new int[ length ];
+        int[] openIndices = new int[ 64 ];
+        int top = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            final int symbol = data[i] & 0xff;
+            result[i] = -1;
+            if ( symbol == branchOpen )
+            {
+                if ( top == openIndices.length ) {
+                    openIndices = Arrays.copyOf( openIndices, top * 2 );
+                }
+                openIndices[top++] = i;
+            }
+            else if ( symbol == branchClose && top > 0 )
+            {
+                final int open = openIndices[--top];
+                result[open] = i;
+                result[i] = open;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the context-sensitive alternatives that apply to the symbol at a given position.
+     *
+     * @param data
+     * @param length
+     * @param index
+     * @param branches result of {@link #matchBranches(byte[], int)}
+     * @return alternatives or <code>null</code> if no context-sensitive rule matches
+     */
+    Alternatives match(byte[] data, int length, int index, int[] branches)
+    {
+        final int symbol = data[index] & 0xff;
+        final int leftNode = leftRoot[symbol];
+        if ( leftNode < 0 ) {
+            return null;
+        }
+
+        long leftMask = left.accept[leftNode];
+        int node = leftNode;
+        for ( int i = previous( data, index - 1, branches ); i >= 0 ; i = previous( data, i - 1, branches ) )
+        {
+            node = left.next[ node * symbolCount + (data[i] & 0xff) ];
+            if ( node == 0 ) {
+                break;
+            }
+            leftMask |= left.accept[node];
+        }
+        if ( leftMask == 0 ) {
+            return null;
+        }
+
+        long rightMask = right.accept[ rightRoot[symbol] ];
+        node = rightRoot[symbol];
+        for ( int i = next( data, length, index + 1, branches ); i >= 0 ; i = next( data, length, i + 1, branches ) )
+        {
+            node = right.next[ node * symbolCount + (data[i] & 0xff) ];
+            if ( node == 0 ) {
+                break;
+            }
+            rightMask |= right.accept[node];
+        }
+
+        final long matches = leftMask & rightMask;
+        if ( matches == 0 ) {
+            return null;
+        }
+        // rules declared first take precedence
+        return candidates[symbol][ Long.numberOfTrailingZeros( matches ) ];
+    }
+
+    /*
+     * Returns the index of the left neighbour at or before index i, -1 if there is none.
+     */
+    private int previous(byte[] data, int i, int[] branches)
+    {
+        while ( i >= 0 )
+        {
+            final int symbol = data[i] & 0xff;
+            if ( symbol == branchClose && branches != null )
+            {
+                // skip complete branch
+                final int open = branches[i];
+                if ( open < 0 ) {
+                    return -1;
+                }
+                i = open - 1;
+            }
+            else if ( symbol == branchOpen || isIgnored[symbol] )
+            {
+                // start of the branch we're in, context continues with the parent
+                i--;
+            } else {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Returns the index of the right neighbour at or after index i, -1 if there is none.
+     */
+    private int next(byte[] data, int length, int i, int[] branches)
+    {
+        while ( i < length )
+        {
+            final int symbol = data[i] & 0xff;
+            if ( symbol == branchOpen && branches != null )
+            {
+                // skip nested branch
+                final int close = branches[i];
+                if ( close < 0 ) {
+                    return -1;
+                }
+                i = close + 1;
+            }
+            else if ( symbol == branchClose ) {
+                // end of the branch we're in
+                return -1;
+            }
+            else if ( isIgnored[symbol] ) {
+                i++;
+            } else {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,343 @@
+package de.codesourcery;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import de.codesourcery.ui.Bounds;
+import de.codesourcery.ui.LineBuffer;
+import de.codesourcery.ui.PrimitiveTurtle;
+import de.codesourcery.util.Fingerprint;
+
+/**
+ * Memory-bounded cache of derived strings and rendered geometry.
+ *
+ * Entries are keyed by a content hash over the initial state and rules (see {@link LSystemCalculator#fingerprint()}),
+ * the number of iterations and, for geometry, the renderer's actions (see {@link TableRenderer#fingerprint(Fingerprint)}),
+ * so equal systems share entries no matter which instances they are made of. Entries also keep all values that went
+ * into their hash, which get compared on lookup so a hash collision can never yield another system's result.
+ * When the total size of all entries exceeds the budget, the least recently used ones get evicted.
+ *
+ * Results returned by this cache are shared and must not be modified. Geometry is leased: every geometry returned
+ * by {@link #render(LSystemCalculator, int, TableRenderer)} must be handed back through {@link #release(Geometry)}
+ * once the caller is done with it. Geometry stays valid while leased, even if it got evicted meanwhile. The off-heap
+ * memory of evicted geometry without leases goes to a pool it gets reused from when rendering new geometry; the pool
+ * counts against the budget.
+ */
+public final class DerivationCache
+{
+    private static final int KIND_STRING = 1;
+    private static final int KIND_GEOMETRY = 2;
+
+    // approx. per-entry heap overhead
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<Long,Entry> entries = new LinkedHashMap<>( 16, 0.75f, true );
+    private long bytesUsed;
+
+    // off-heap memory of released geometry, oldest first
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+    private long pooledBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Rendered lines and their bounding box.
+     */
+    public static final class Geometry
+    {
+        public final LineBuffer lines;
+        public final Bounds bounds;
+
+        // leases held by callers and whether the cache holds it, guarded by the cache
+        private int leases;
+        private boolean cached;
+
+        Geometry(LineBuffer lines, Bounds bounds)
+        {
+            this.lines = lines;
+            this.bounds = bounds;
+        }
+    }
+
+    private static final class Entry
+    {
+        // everything the entry's hash was computed from
+        final long[] key;
+        final Object value;
+        final long sizeInBytes;
+
+        Entry(long[] key, Object value, long sizeInBytes)
+        {
+            this.key = key;
+            this.value = value;
+            this.sizeInBytes = sizeInBytes + key.length * 8L;
+        }
+    }
+
+    /**
+     * @param maxBytes max. total size of all entries
+     */
+    public DerivationCache(long maxBytes)
+    {
+        if ( maxBytes < 0 ) {
+            throw new IllegalArgumentException( "Budget must be >= 0" );
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    public SymbolString create(LSystem system, int iterationCount) {
+        return calculate( system.calculator(), iterationCount );
+    }
+
+    /**
+     * Returns the string derived after a given number of iterations, deriving it only if it is not cached.
+     *
+     * @param calculator
+     * @param iterationCount
+     * @return
+     */
+    public synchronized SymbolString calculate(LSystemCalculator calculator, int iterationCount)
+    {
+        final Fingerprint key = Fingerprint.recording().add( KIND_STRING ).add( iterationCount );
+        calculator.fingerprint( key );
+        final Entry existing = lookup( key );
+        if ( existing != null ) {
+            return (SymbolString) existing.value;
+        }
+        final SymbolString result = calculator.calculate( iterationCount );
+        put( key, new Entry( key.values(), result, result.length() + ENTRY_OVERHEAD ) );
+        return result;
+    }
+
+    /**
+     * Returns the geometry of a system after a given number of iterations.
+     *
+     * The geometry must be handed back through {@link #release(Geometry)} once it is no longer needed.
+     *
+     * @param system
+     * @param iterationCount
+     * @return
+     * @throws IllegalArgumentException if the system does not use a {@link TableRenderer}
+     */
+    public Geometry render(LSystem system, int iterationCount)
+    {
+        if ( ! (system.createRenderer() instanceof TableRenderer renderer) ) {
+            throw new IllegalArgumentException( "Only systems using a table-driven renderer are supported" );
+        }
+        return render( system.calculator(), iterationCount, renderer );
+    }
+
+    /**
+     * Returns the geometry of a system after a given number of iterations, rendering it only if it is not cached.
+     *
+     * Lines are drawn by a {@link PrimitiveTurtle} starting at the origin. The geometry must be handed back
+     * through {@link #release(Geometry)} once it is no longer needed.
+     *
+     * @param calculator
+     * @param iterationCount
+     * @param renderer
+     * @return
+     */
+    public synchronized Geometry render(LSystemCalculator calculator, int iterationCount, TableRenderer renderer)
+    {
+        final Fingerprint key = Fingerprint.recording().add( KIND_GEOMETRY ).add( iterationCount );
+        calculator.fingerprint( key );
+        renderer.fingerprint( key );
+        final Entry existing = lookup( key );
+        if ( existing != null )
+        {
+            final Geometry result = (Geometry) existing.value;
+            result.leases++;
+            return result;
+        }
+
+        final ByteBuffer memory = takePooled();
+        final Geometry result = new Geometry( memory != null ? LineBuffer.reuse( memory ) : new LineBuffer(), new Bounds() );
+        result.leases = 1;
+        final PrimitiveTurtle turtle = new PrimitiveTurtle( result.lines, result.bounds );
+        if ( calculator.isStreamable() ) {
+            calculator.stream( iterationCount, renderer.createSink( turtle ) );
+        } else {
+            renderer.render( calculate( calculator, iterationCount ), turtle, true );
+        }
+        result.cached = put( key, new Entry( key.values(), result, result.lines.sizeInBytes() + ENTRY_OVERHEAD ) );
+        return result;
+    }
+
+    /**
+     * Hands back geometry obtained from this cache.
+     *
+     * The geometry must not be used any longer by the caller after this method has been called.
+     *
+     * @param geometry
+     */
+    public synchronized void release(Geometry geometry)
+    {
+        if ( geometry.leases <= 0 ) {
+            throw new IllegalStateException( "Geometry has already been released" );
+        }
+        if ( --geometry.leases == 0 && ! geometry.cached ) {
+            recycle( geometry );
+        }
+    }
+
+    private void recycle(Geometry geometry)
+    {
+        final ByteBuffer memory = geometry.lines.detach();
+        if ( memory != null ) {
+            pool.addLast( memory );
+            pooledBytes += memory.capacity();
+            trimPool();
+        }
+    }
+
+    /*
+     * Drops the oldest pooled memory until the pool fits into what the entries leave of the budget.
+     */
+    private void trimPool()
+    {
+        while ( bytesUsed + pooledBytes > maxBytes && ! pool.isEmpty() ) {
+            pooledBytes -= pool.removeFirst().capacity();
+        }
+    }
+
+    /*
+     * Takes the largest buffer from the pool, returns null if the pool is empty.
+     */
+    private ByteBuffer takePooled()
+    {
+        ByteBuffer result = null;
+        for ( final ByteBuffer memory : pool )
+        {
+            if ( result == null || memory.capacity() > result.capacity() ) {
+                result = memory;
+            }
+        }
+        if ( result != null )
+        {
+            pool.remove( result );
+            pooledBytes -= result.capacity();
+        }
+        return result;
+    }
+
+    private Entry lookup(Fingerprint key)
+    {
+        Entry result = entries.get( key.value() );
+        if ( result != null && ! Arrays.equals( result.key, key.values() ) ) {
+            // hash collision, the entry gets replaced
+            result = null;
+        }
+        if ( result != null ) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return result;
+    }
+
+    /*
+     * Adds an entry, returns whether it was added.
+     */
+    private boolean put(Fingerprint key, Entry entry)
+    {
+        if ( entry.sizeInBytes > maxBytes ) {
+            // would evict everything else and still not fit
+            return false;
+        }
+        final Entry previous = entries.put( key.value(), entry );
+        if ( previous != null ) {
+            bytesUsed -= previous.sizeInBytes;
+            evicted( previous );
+        }
+        bytesUsed += entry.sizeInBytes;
+        final Iterator<Map.Entry<Long,Entry>> it = entries.entrySet().iterator();
+        while ( bytesUsed > maxBytes && it.hasNext() )
+        {
+            final Entry eldest = it.next().getValue();
+            if ( eldest == entry ) {
+                continue;
+            }
+            it.remove();
+            bytesUsed -= eldest.sizeInBytes;
+            evictions++;
+            evicted( eldest );
+        }
+        trimPool();
+        return true;
+    }
+
+    /*
+     * Recycles geometry that is no longer cached unless callers still hold leases on it.
+     */
+    private void evicted(Entry entry)
+    {
+        if ( entry.value instanceof Geometry geometry )
+        {
+            geometry.cached = false;
+            if ( geometry.leases == 0 ) {
+                recycle( geometry );
+            }
+        }
+    }
+
+    /**
+     * Removes all entries and drops all pooled memory.
+     */
+    public synchronized void clear()
+    {
+        for ( final Entry entry : entries.values() ) {
+            evicted( entry );
+        }
+        entries.clear();
+        bytesUsed = 0;
+        pool.clear();
+        pooledBytes = 0;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the total size of all entries.
+     *
+     * @return
+     */
+    public synchronized long bytesUsed() {
+        return bytesUsed;
+    }
+
+    /**
+     * Returns the size of off-heap memory kept for reuse.
+     *
+     * @return
+     */
+    public synchronized long pooledBytes() {
+        return pooledBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DerivationCache[ " + entries.size() + " entries, " + bytesUsed + " of " + maxBytes + " bytes, " + pooledBytes + " bytes pooled, " + hits + " hits, " + misses + " misses, " + evictions + " evictions ]";
+    }
+}
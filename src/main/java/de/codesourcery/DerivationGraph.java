@@ -0,0 +1,224 @@
+package de.codesourcery;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A derivation represented as a directed acyclic graph (a straight-line program).
+ *
+ * The expansion of a symbol S after k more iterations is always the same, so it is represented
+ * by exactly one {@link Node} that is shared by every place where S gets expanded at that depth.
+ * Memory and time needed to build the graph are proportional to the number of distinct (symbol, depth) pairs
+ * instead of the length of the derived string.
+ *
+ * The derived string can be traversed sequentially using a {@link Cursor} or flattened on demand.
+ */
+public final class DerivationGraph
+{
+    private final Alphabet alphabet;
+    private final Node root;
+    private final int nodeCount;
+
+    public static final class Node
+    {
+        /**
+         * Symbol id, -1 for the root node.
+         */
+        public final int symbol;
+        /**
+         * Number of iterations this node expands its symbol.
+         */
+        public final int depth;
+        /**
+         * Length of the expansion, saturated at {@link Long#MAX_VALUE}.
+         */
+        public final long length;
+
+        private final Node[] children;
+
+        private Node(int symbol, int depth, Node[] children)
+        {
+            this.symbol = symbol;
+            this.depth = depth;
+            this.children = children;
+            if ( children == null ) {
+                this.length = 1;
+            }
+            else
+            {
+                long len = 0;
+                for ( final Node child : children )
+                {
+                    len += child.length;
+                    if ( len < 0 ) {
+                        len = Long.MAX_VALUE;
+                    }
+                }
+                this.length = len;
+            }
+        }
+
+        public boolean isLeaf() {
+            return children == null;
+        }
+
+        public int childCount() {
+            return children == null ? 0 : children.length;
+        }
+
+        public Node child(int index) {
+            return children[index];
+        }
+    }
+
+    DerivationGraph(SymbolString axiom, byte[][] successors, int iterationCount)
+    {
+        this.alphabet = axiom.alphabet();
+
+        final Node[] leaves = new Node[ successors.length ];
+        final Node[][] nodes = new Node[ iterationCount + 1 ][ successors.length ];
+        int count = 0;
+        for ( int id = 0; id < successors.length; id++ ) {
+            leaves[id] = nodes[0][id] = new Node( id, 0, null );
+            count++;
+        }
+
+        // build bottom-up so every node's children already exist
+        for ( int depth = 1; depth <= iterationCount; depth++ )
+        {
+            for ( int id = 0; id < successors.length; id++ )
+            {
+                final byte[] successor = successors[id];
+                if ( successor.length == 1 && (successor[0] & 0xff) == id ) {
+                    nodes[depth][id] = leaves[id];
+                    continue;
+                }
+                final Node[] children = new Node[ successor.length ];
+                for ( int i = 0; i < successor.length; i++ ) {
+                    children[i] = nodes[depth - 1][ successor[i] & 0xff ];
+                }
+                nodes[depth][id] = new Node( id, depth, children );
+                count++;
+            }
+        }
+
+        final Node[] rootChildren = new Node[ axiom.length() ];
+        for ( int i = 0; i < rootChildren.length; i++ ) {
+            rootChildren[i] = nodes[iterationCount][ axiom.get( i ) ];
+        }
+        this.root = new Node( -1, iterationCount, rootChildren );
+        this.nodeCount = count + 1;
+    }
+
+    public Alphabet alphabet() {
+        return alphabet;
+    }
+
+    public Node root() {
+        return root;
+    }
+
+    /**
+     * Returns the length of the derived string.
+     *
+     * @return length, saturated at {@link Long#MAX_VALUE}
+     */
+    public long length() {
+        return root.length;
+    }
+
+    /**
+     * Returns the number of distinct nodes in this graph.
+     *
+     * @return
+     */
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public void forEach(SymbolSink sink)
+    {
+        final Cursor cursor = cursor();
+        while ( cursor.hasNext() ) {
+            sink.accept( cursor.next() );
+        }
+    }
+
+    /**
+     * Flattens this graph into a symbol string.
+     *
+     * @return
+     */
+    public SymbolString toSymbolString()
+    {
+        if ( length() > SymbolString.MAX_LENGTH ) {
+            throw new IllegalStateException( "Derived string has " + length() + " symbols, max. supported length is " + SymbolString.MAX_LENGTH );
+        }
+        final SymbolString.Builder builder = new SymbolString.Builder( alphabet, (int) length() );
+        forEach( builder::append );
+        return builder.build();
+    }
+
+    /**
+     * Sequential cursor over the derived string.
+     *
+     * Walks the graph depth-first using an explicit stack.
+     */
+    public final class Cursor
+    {
+        private final Node[] nodes = new Node[ root.depth + 2 ];
+        private final int[] indices = new int[ root.depth + 2 ];
+        private int top;
+        private int next = -1;
+
+        private Cursor() {
+            nodes[0] = root;
+        }
+
+        public boolean hasNext()
+        {
+            if ( next == -1 ) {
+                next = advance();
+            }
+            return next >= 0;
+        }
+
+        /**
+         * Returns the next symbol.
+         *
+         * @return symbol id
+         */
+        public int next()
+        {
+            if ( ! hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            final int result = next;
+            next = -1;
+            return result;
+        }
+
+        private int advance()
+        {
+            while ( top >= 0 )
+            {
+                final Node node = nodes[top];
+                if ( indices[top] == node.children.length ) {
+                    top--;
+                    continue;
+                }
+                final Node child = node.children[ indices[top]++ ];
+                if ( child.isLeaf() ) {
+                    return child.symbol;
+                }
+                top++;
+                nodes[top] = child;
+                indices[top] = 0;
+            }
+            return -2;
+        }
+    }
+}
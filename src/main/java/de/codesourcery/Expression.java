@@ -0,0 +1,49 @@
+package de.codesourcery;
+
+/**
+ * An arithmetic expression over the parameters of a parametric module, compiled into
+ * a tree of closures (see {@link ExpressionParser}) so evaluating it involves no parsing or name lookups.
+ *
+ * Boolean results are represented as <code>1</code> (true) and <code>0</code> (false).
+ */
+@FunctionalInterface
+public interface Expression
+{
+    /**
+     * Evaluates this expression.
+     *
+     * @param arguments actual parameters of the module being rewritten, indexed by formal parameter position
+     * @return
+     */
+    float evaluate(float[] arguments);
+
+    /**
+     * Returns whether this expression always yields the same value.
+     *
+     * @return
+     */
+    default boolean isConstant() {
+        return false;
+    }
+
+    static Expression constant(float value)
+    {
+        return new Expression()
+        {
+            @Override
+            public float evaluate(float[] arguments) {
+                return value;
+            }
+
+            @Override
+            public boolean isConstant() {
+                return true;
+            }
+
+            @Override
+            public String toString() {
+                return Float.toString( value );
+            }
+        };
+    }
+}
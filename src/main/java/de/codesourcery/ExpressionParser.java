@@ -0,0 +1,351 @@
+package de.codesourcery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Recursive-descent parser for parametric modules and the expressions used as their actual parameters and conditions.
+ *
+ * Expressions get compiled into a tree of closures while parsing, formal parameter names are resolved
+ * to argument indices and constant sub-expressions are folded, so nothing is left to interpret at evaluation time.
+ *
+ * Supported syntax:
+ * <ul>
+ *   <li>numbers, formal parameter names and parentheses</li>
+ *   <li><code>+ - * / ^</code> and unary <code>-</code></li>
+ *   <li><code>&lt; &lt;= &gt; &gt;= == !=</code>, <code>&amp;&amp; || !</code></li>
+ *   <li>functions <code>sqrt, abs, sin, cos</code> (degrees), <code>min, max</code></li>
+ * </ul>
+ */
+final class ExpressionParser
+{
+    private final String input;
+    private final List<String> formals;
+    private int offset;
+
+    /**
+     * @param input text to parse
+     * @param formals formal parameter names, in order
+     */
+    ExpressionParser(String input, List<String> formals)
+    {
+        this.input = input;
+        this.formals = formals;
+    }
+
+    /**
+     * Parses a single expression spanning the whole input.
+     *
+     * @param input
+     * @param formals formal parameter names, in order
+     * @return
+     */
+    static Expression parse(String input, List<String> formals)
+    {
+        final ExpressionParser parser = new ExpressionParser( input, formals );
+        final Expression result = parser.expression();
+        parser.expectEOF();
+        return result;
+    }
+
+    boolean isEOF()
+    {
+        skipWhitespace();
+        return offset >= input.length();
+    }
+
+    void expectEOF()
+    {
+        if ( ! isEOF() ) {
+            throw error( "Unexpected character '" + input.charAt( offset ) + "'" );
+        }
+    }
+
+    /**
+     * Parses the symbol of a module.
+     *
+     * @param alphabet
+     * @return
+     */
+    Alphabet.Symbol symbol(Alphabet alphabet)
+    {
+        if ( isEOF() ) {
+            throw error( "Expected a symbol" );
+        }
+        final char c = input.charAt( offset );
+        if ( c == '(' || c == ')' || c == ',' ) {
+            throw error( "Expected a symbol but got '" + c + "'" );
+        }
+        offset++;
+        return alphabet.lookup( c );
+    }
+
+    /**
+     * Parses an optional, parenthesized list of expressions following a module's symbol.
+     *
+     * @return expressions, empty if there is no list
+     */
+    List<Expression> actualParameters()
+    {
+        final List<Expression> result = new ArrayList<>();
+        if ( consume( '(' ) )
+        {
+            do {
+                result.add( expression() );
+            } while ( consume( ',' ) );
+            expect( ')' );
+        }
+        return result;
+    }
+
+    /**
+     * Parses an optional, parenthesized list of formal parameter names following a module's symbol.
+     *
+     * @return names, empty if there is no list
+     */
+    List<String> formalParameters()
+    {
+        final List<String> result = new ArrayList<>();
+        if ( consume( '(' ) )
+        {
+            do {
+                final String name = identifier();
+                if ( name == null ) {
+                    throw error( "Expected a parameter name" );
+                }
+                if ( result.contains( name ) ) {
+                    throw error( "Duplicate parameter name '" + name + "'" );
+                }
+                result.add( name );
+            } while ( consume( ',' ) );
+            expect( ')' );
+        }
+        return result;
+    }
+
+    Expression expression()
+    {
+        Expression result = and();
+        while ( consume( "||" ) ) {
+            result = binary( result, and(), (a, b) -> a != 0 || b != 0 ? 1 : 0 );
+        }
+        return result;
+    }
+
+    private Expression and()
+    {
+        Expression result = comparison();
+        while ( consume( "&&" ) ) {
+            result = binary( result, comparison(), (a, b) -> a != 0 && b != 0 ? 1 : 0 );
+        }
+        return result;
+    }
+
+    private Expression comparison()
+    {
+        final Expression left = sum();
+        if ( consume( "<=" ) ) {
+            return binary( left, sum(), (a, b) -> a <= b ? 1 : 0 );
+        }
+        if ( consume( ">=" ) ) {
+            return binary( left, sum(), (a, b) -> a >= b ? 1 : 0 );
+        }
+        if ( consume( "==" ) ) {
+            return binary( left, sum(), (a, b) -> a == b ? 1 : 0 );
+        }
+        if ( consume( "!=" ) ) {
+            return binary( left, sum(), (a, b) -> a != b ? 1 : 0 );
+        }
+        if ( consume( '<' ) ) {
+            return binary( left, sum(), (a, b) -> a < b ? 1 : 0 );
+        }
+        if ( consume( '>' ) ) {
+            return binary( left, sum(), (a, b) -> a > b ? 1 : 0 );
+        }
+        return left;
+    }
+
+    private Expression sum()
+    {
+        Expression result = product();
+        while ( true )
+        {
+            if ( consume( '+' ) ) {
+                result = binary( result, product(), (a, b) -> a + b );
+            } else if ( consume( '-' ) ) {
+                result = binary( result, product(), (a, b) -> a - b );
+            } else {
+                return result;
+            }
+        }
+    }
+
+    private Expression product()
+    {
+        Expression result = unary();
+        while ( true )
+        {
+            if ( consume( '*' ) ) {
+                result = binary( result, unary(), (a, b) -> a * b );
+            } else if ( consume( '/' ) ) {
+                result = binary( result, unary(), (a, b) -> a / b );
+            } else {
+                return result;
+            }
+        }
+    }
+
+    private Expression unary()
+    {
+        if ( consume( '-' ) ) {
+            return unary( unary(), a -> -a );
+        }
+        if ( ! peek( "!=" ) && consume( '!' ) ) {
+            return unary( unary(), a -> a == 0 ? 1 : 0 );
+        }
+        final Expression base = primary();
+        if ( consume( '^' ) ) {
+            return binary( base, unary(), (a, b) -> (float) Math.pow( a, b ) );
+        }
+        return base;
+    }
+
+    private Expression primary()
+    {
+        if ( consume( '(' ) )
+        {
+            final Expression result = expression();
+            expect( ')' );
+            return result;
+        }
+        skipWhitespace();
+        final int start = offset;
+        while ( offset < input.length() && ( Character.isDigit( input.charAt( offset ) ) || input.charAt( offset ) == '.' ) ) {
+            offset++;
+        }
+        if ( offset > start )
+        {
+            try {
+                return Expression.constant( Float.parseFloat( input.substring( start, offset ) ) );
+            } catch (NumberFormatException e) {
+                offset = start;
+                throw error( "Malformed number" );
+            }
+        }
+        final String name = identifier();
+        if ( name == null ) {
+            throw error( "Expected a number, parameter name or '('" );
+        }
+        if ( consume( '(' ) ) {
+            return function( name );
+        }
+        final int index = formals.indexOf( name );
+        if ( index < 0 ) {
+            offset = start;
+            throw error( "Unknown parameter '" + name + "'" );
+        }
+        return arguments -> arguments[index];
+    }
+
+    private Expression function(String name)
+    {
+        final Expression result;
+        switch( name )
+        {
+            case "sqrt": result = unary( expression(), Math::sqrt ); break;
+            case "abs":  result = unary( expression(), Math::abs ); break;
+            case "sin":  result = unary( expression(), a -> Math.sin( Math.toRadians( a ) ) ); break;
+            case "cos":  result = unary( expression(), a -> Math.cos( Math.toRadians( a ) ) ); break;
+            case "min":
+            case "max":
+                final Expression a = expression();
+                expect( ',' );
+                result = binary( a, expression(), name.equals( "min" ) ? Math::min : Math::max );
+                break;
+            default:
+                throw error( "Unknown function '" + name + "'" );
+        }
+        expect( ')' );
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface BinaryOperator
+    {
+        float apply(float a, float b);
+    }
+
+    private static Expression binary(Expression left, Expression right, BinaryOperator op)
+    {
+        if ( left.isConstant() && right.isConstant() ) {
+            return Expression.constant( op.apply( left.evaluate( null ), right.evaluate( null ) ) );
+        }
+        return arguments -> op.apply( left.evaluate( arguments ), right.evaluate( arguments ) );
+    }
+
+    private static Expression unary(Expression operand, DoubleUnaryOperator op)
+    {
+        if ( operand.isConstant() ) {
+            return Expression.constant( (float) op.applyAsDouble( operand.evaluate( null ) ) );
+        }
+        return arguments -> (float) op.applyAsDouble( operand.evaluate( arguments ) );
+    }
+
+    private String identifier()
+    {
+        skipWhitespace();
+        final int start = offset;
+        if ( offset < input.length() && Character.isLetter( input.charAt( offset ) ) )
+        {
+            offset++;
+            while ( offset < input.length() && Character.isLetterOrDigit( input.charAt( offset ) ) ) {
+                offset++;
+            }
+        }
+        return offset > start ? input.substring( start, offset ) : null;
+    }
+
+    private boolean peek(String token)
+    {
+        skipWhitespace();
+        return input.startsWith( token, offset );
+    }
+
+    private boolean consume(String token)
+    {
+        if ( peek( token ) ) {
+            offset += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean consume(char c)
+    {
+        skipWhitespace();
+        if ( offset < input.length() && input.charAt( offset ) == c ) {
+            offset++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c)
+    {
+        if ( ! consume( c ) ) {
+            throw error( "Expected '" + c + "'" );
+        }
+    }
+
+    private void skipWhitespace()
+    {
+        while ( offset < input.length() && Character.isWhitespace( input.charAt( offset ) ) ) {
+            offset++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException( message + " at offset " + offset + " in \"" + input + "\"" );
+    }
+}
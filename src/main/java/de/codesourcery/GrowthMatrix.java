@@ -0,0 +1,185 @@
+package de.codesourcery;
+
+/**
+ * Analytic growth prediction for a set of (context-free) production rules.
+ *
+ * The growth matrix <code>M</code> holds in <code>M[a][b]</code> how often symbol <code>b</code> occurs in
+ * the successor of symbol <code>a</code>. Given the Parikh vector <code>v</code> of an axiom (the number of occurrences
+ * of each symbol), the Parikh vector of the string derived after <code>n</code> iterations is <code>v * M^n</code>,
+ * which is computed here in <code>O(k^3 * log n)</code> (k being the size of the alphabet) without deriving anything.
+ *
+ * All arithmetic saturates at {@link Long#MAX_VALUE} instead of overflowing.
+ */
+public final class GrowthMatrix
+{
+    private final Alphabet alphabet;
+    private final long[][] matrix;
+
+    GrowthMatrix(Alphabet alphabet, byte[][] successors)
+    {
+        this.alphabet = alphabet;
+        final int size = successors.length;
+        this.matrix = new long[size][size];
+        for ( int a = 0; a < size; a++ )
+        {
+            for ( final byte b : successors[a] ) {
+                matrix[a][b & 0xff]++;
+            }
+        }
+    }
+
+    public static GrowthMatrix of(ProductionRules rules, Alphabet alphabet) {
+        return new GrowthMatrix( alphabet, rules.compileDeterministic( alphabet ) );
+    }
+
+    /**
+     * Returns the number of occurrences of each symbol in a string.
+     *
+     * @param input
+     * @return number of occurrences, indexed by symbol id
+     */
+    public long[] parikhVector(SymbolString input)
+    {
+        final long[] result = new long[ matrix.length ];
+        for ( int i = 0, len = input.length(); i < len; i++ ) {
+            result[ input.get( i ) ]++;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of occurrences of each symbol after a number of iterations.
+     *
+     * @param axiom
+     * @param iterations
+     * @return number of occurrences, indexed by symbol id
+     */
+    public long[] counts(SymbolString axiom, int iterations)
+    {
+        if ( iterations < 0 ) {
+            throw new IllegalArgumentException( "Iteration count must be >= 0" );
+        }
+        return multiply( parikhVector( axiom ), power( iterations ) );
+    }
+
+    /**
+     * Advances a Parikh vector by a single iteration.
+     *
+     * @param counts number of occurrences, indexed by symbol id
+     * @return number of occurrences after applying the rules once
+     */
+    public long[] next(long[] counts) {
+        return multiply( counts, matrix );
+    }
+
+    /**
+     * Returns the length of the string derived after a number of iterations.
+     *
+     * @param axiom
+     * @param iterations
+     * @return
+     */
+    public long length(SymbolString axiom, int iterations) {
+        return sum( counts( axiom, iterations ) );
+    }
+
+    /**
+     * Returns the total number of occurrences of some symbols after a number of iterations,
+     * for example to predict the number of lines a renderer is going to draw.
+     *
+     * @param axiom
+     * @param iterations
+     * @param symbols
+     * @return
+     */
+    public long count(SymbolString axiom, int iterations, Alphabet.Symbol... symbols)
+    {
+        final long[] counts = counts( axiom, iterations );
+        long result = 0;
+        for ( final Alphabet.Symbol s : symbols )
+        {
+            if ( s.alphabet() != alphabet ) {
+                throw new IllegalArgumentException( "Symbol " + s + " belongs to a different alphabet" );
+            }
+            result = add( result, counts[s.id] );
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total length of a string given its Parikh vector.
+     *
+     * @param counts
+     * @return
+     */
+    public static long sum(long[] counts)
+    {
+        long result = 0;
+        for ( final long c : counts ) {
+            result = add( result, c );
+        }
+        return result;
+    }
+
+    private long[][] power(int exponent)
+    {
+        final int size = matrix.length;
+        long[][] result = new long[size][size];
+        for ( int i = 0; i < size; i++ ) {
+            result[i][i] = 1;
+        }
+        long[][] base = matrix;
+        while ( exponent > 0 )
+        {
+            if ( (exponent & 1) != 0 ) {
+                result = multiply( result, base );
+            }
+            exponent >>>= 1;
+            if ( exponent > 0 ) {
+                base = multiply( base, base );
+            }
+        }
+        return result;
+    }
+
+    private static long[] multiply(long[] vector, long[][] m)
+    {
+        final int size = vector.length;
+        final long[] result = new long[size];
+        for ( int a = 0; a < size; a++ )
+        {
+            if ( vector[a] != 0 )
+            {
+                final long[] row = m[a];
+                for ( int b = 0; b < size; b++ ) {
+                    result[b] = add( result[b], mul( vector[a], row[b] ) );
+                }
+            }
+        }
+        return result;
+    }
+
+    private static long[][] multiply(long[][] m1, long[][] m2)
+    {
+        final int size = m1.length;
+        final long[][] result = new long[size][];
+        for ( int i = 0; i < size; i++ ) {
+            result[i] = multiply( m1[i], m2 );
+        }
+        return result;
+    }
+
+    private static long add(long a, long b)
+    {
+        final long r = a + b;
+        return r < 0 ? Long.MAX_VALUE : r;
+    }
+
+    private static long mul(long a, long b)
+    {
+        if ( a == 0 || b == 0 ) {
+            return 0;
+        }
+        return a > Long.MAX_VALUE / b ? Long.MAX_VALUE : a * b;
+    }
+}
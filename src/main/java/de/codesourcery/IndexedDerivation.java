@@ -0,0 +1,230 @@
+package de.codesourcery;
+
+import java.util.Arrays;
+
+/**
+ * Random-access view of the string derived after a number of iterations that never expands the string.
+ *
+ * The length of the expansion of each symbol after k iterations is precomputed for every (symbol, k) pair, so locating
+ * the symbol at a given index just needs to descend the rule tree once, picking the successor symbol
+ * whose expansion covers the index on each level.
+ *
+ * Indices are <code>long</code>s, lengths beyond {@link Long#MAX_VALUE} saturate and the corresponding
+ * symbols cannot be addressed.
+ */
+public final class IndexedDerivation
+{
+    private final Alphabet alphabet;
+    private final byte[][] successors;
+    private final boolean[] isIdentity;
+    private final int iterationCount;
+
+    private final byte[] axiom;
+    // axiomOffsets[i] is the index of the first symbol derived from axiom symbol i
+    private final long[] axiomOffsets;
+    // offsets[k][s][j] is the offset of successor j inside the expansion of symbol s after k iterations
+    private final long[][][] offsets;
+
+    IndexedDerivation(SymbolString axiom, byte[][] successors, int iterationCount)
+    {
+        this.alphabet = axiom.alphabet();
+        this.successors = successors;
+        this.iterationCount = iterationCount;
+        this.axiom = axiom.toByteArray();
+
+        final int symbolCount = successors.length;
+        this.isIdentity = new boolean[ symbolCount ];
+        for ( int id = 0; id < symbolCount; id++ ) {
+            isIdentity[id] = successors[id].length == 1 && (successors[id][0] & 0xff) == id;
+        }
+
+        // lengths[k][s] is the length of the expansion of symbol s after k iterations
+        final long[][] lengths = new long[ iterationCount + 1 ][ symbolCount ];
+        Arrays.fill( lengths[0], 1 );
+        offsets = new long[ iterationCount + 1 ][ symbolCount ][];
+        for ( int k = 1; k <= iterationCount; k++ )
+        {
+            for ( int id = 0; id < symbolCount; id++ )
+            {
+                if ( isIdentity[id] ) {
+                    lengths[k][id] = 1;
+                    continue;
+                }
+                final byte[] successor = successors[id];
+                final long[] childOffsets = new long[ successor.length + 1 ];
+                for ( int j = 0; j < successor.length; j++ ) {
+                    childOffsets[j + 1] = add( childOffsets[j], lengths[k - 1][ successor[j] & 0xff ] );
+                }
+                offsets[k][id] = childOffsets;
+                lengths[k][id] = childOffsets[ successor.length ];
+            }
+        }
+
+        axiomOffsets = new long[ this.axiom.length + 1 ];
+        for ( int i = 0; i < this.axiom.length; i++ ) {
+            axiomOffsets[i + 1] = add( axiomOffsets[i], lengths[iterationCount][ this.axiom[i] & 0xff ] );
+        }
+    }
+
+    public Alphabet alphabet() {
+        return alphabet;
+    }
+
+    /**
+     * Returns the length of the derived string.
+     *
+     * @return length, saturated at {@link Long#MAX_VALUE}
+     */
+    public long length() {
+        return axiomOffsets[ axiom.length ];
+    }
+
+    /**
+     * Returns the symbol at a given index of the derived string.
+     *
+     * @param index
+     * @return symbol id
+     */
+    public int symbolAt(long index)
+    {
+        checkIndex( index );
+        final int i = indexOf( axiomOffsets, axiom.length, index );
+        int symbol = axiom[i] & 0xff;
+        long remaining = index - axiomOffsets[i];
+        for ( int depth = iterationCount; depth > 0 && ! isIdentity[symbol]; depth-- )
+        {
+            final long[] childOffsets = offsets[depth][symbol];
+            final int j = indexOf( childOffsets, childOffsets.length - 1, remaining );
+            remaining -= childOffsets[j];
+            symbol = successors[symbol][j] & 0xff;
+        }
+        return symbol;
+    }
+
+    /**
+     * Passes a range of the derived string to a sink.
+     *
+     * @param from index of first symbol
+     * @param count number of symbols
+     * @param sink
+     */
+    public void forEach(long from, long count, SymbolSink sink)
+    {
+        if ( count < 0 || ( count > 0 && from + count > length() ) ) {
+            throw new IndexOutOfBoundsException( "Range " + from + "+" + count + " out of bounds for length " + length() );
+        }
+        if ( count == 0 ) {
+            return;
+        }
+        final Cursor cursor = cursor( from );
+        for ( long i = 0; i < count; i++ ) {
+            sink.accept( cursor.next() );
+        }
+    }
+
+    /**
+     * Returns a cursor positioned at a given index.
+     *
+     * @param index index of the first symbol the cursor is going to return
+     * @return
+     */
+    public Cursor cursor(long index) {
+        return new Cursor( index );
+    }
+
+    /**
+     * Sequential cursor over the derived string.
+     */
+    public final class Cursor
+    {
+        private final byte[][] sequences = new byte[ iterationCount + 1 ][];
+        private final int[] positions = new int[ iterationCount + 1 ];
+        private int depth;
+        private int pending;
+
+        private Cursor(long index)
+        {
+            checkIndex( index );
+
+            // descend to the symbol at the given index, remembering where to continue on each level
+            sequences[0] = axiom;
+            int i = indexOf( axiomOffsets, axiom.length, index );
+            positions[0] = i + 1;
+            int symbol = axiom[i] & 0xff;
+            long remaining = index - axiomOffsets[i];
+            while ( depth < iterationCount && ! isIdentity[symbol] )
+            {
+                final long[] childOffsets = offsets[ iterationCount - depth ][symbol];
+                final int j = indexOf( childOffsets, childOffsets.length - 1, remaining );
+                remaining -= childOffsets[j];
+                depth++;
+                sequences[depth] = successors[symbol];
+                positions[depth] = j + 1;
+                symbol = successors[symbol][j] & 0xff;
+            }
+            pending = symbol;
+        }
+
+        /**
+         * Returns the next symbol.
+         *
+         * @return symbol id or -1 if the end of the string has been reached
+         */
+        public int next()
+        {
+            if ( pending >= 0 ) {
+                final int result = pending;
+                pending = -1;
+                return result;
+            }
+            while ( depth >= 0 )
+            {
+                final byte[] sequence = sequences[depth];
+                if ( positions[depth] == sequence.length ) {
+                    depth--;
+                    continue;
+                }
+                final int symbol = sequence[ positions[depth]++ ] & 0xff;
+                if ( depth == iterationCount || isIdentity[symbol] ) {
+                    return symbol;
+                }
+                depth++;
+                sequences[depth] = successors[symbol];
+                positions[depth] = 0;
+            }
+            return -1;
+        }
+    }
+
+    private void checkIndex(long index)
+    {
+        if ( index < 0 || index >= length() ) {
+            throw new IndexOutOfBoundsException( "Index " + index + " out of bounds for length " + length() );
+        }
+    }
+
+    /*
+     * Returns the index i of the last offset that is <= value (offsets[0] is always 0).
+     */
+    private static int indexOf(long[] offsets, int count, long value)
+    {
+        int low = 0;
+        int high = count - 1;
+        while ( low < high )
+        {
+            final int mid = (low + high + 1) >>> 1;
+            if ( offsets[mid] <= value ) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static long add(long a, long b)
+    {
+        final long r = a + b;
+        return r < 0 ? Long.MAX_VALUE : r;
+    }
+}
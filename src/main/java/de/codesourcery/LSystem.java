@@ -1,10 +1,25 @@
 package de.codesourcery;
 
-import java.util.List;
+import de.codesourcery.ui.Turtle;
 
 public interface LSystem
 {
-    List<Alphabet.Symbol> create(int iterationCount);
+    LSystemCalculator calculator();
+
+    default SymbolString create(int iterationCount) {
+        return calculator().calculate( iterationCount );
+    }
 
     LSystemRenderer createRenderer();
+
+    /**
+     * Renders this system by streaming the derived symbols straight into the renderer,
+     * never materializing the derived string.
+     *
+     * @param iterationCount
+     * @param turtle
+     */
+    default void render(int iterationCount, Turtle turtle) {
+        calculator().stream( iterationCount, createRenderer().createSink( this, turtle ) );
+    }
 }
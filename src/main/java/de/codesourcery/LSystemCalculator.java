@@ -1,29 +1,311 @@
 package de.codesourcery;
 
-import java.util.List;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import de.codesourcery.ui.InstancedGeometry;
+import de.codesourcery.util.Fingerprint;
 
+/**
+ * Derives the string an L-system yields after a number of iterations.
+ *
+ * Growth prediction, streaming, graph/indexed views, off-heap and run-length encoded derivation rely on each symbol
+ * being rewritten independently of its neighbours and position and throw an {@link UnsupportedOperationException}
+ * for context-sensitive or stochastic rules.
+ */
 public class LSystemCalculator
 {
-    private final List<Alphabet.Symbol> initialState;
+    private final SymbolString initialState;
     private final ProductionRules rules;
 
-    public LSystemCalculator(List<Alphabet.Symbol> initialState, ProductionRules rules)
+    public LSystemCalculator(SymbolString initialState, ProductionRules rules)
     {
         this.initialState = initialState;
         this.rules = rules;
     }
 
-    public List<Alphabet.Symbol> calculate(int iterationCount)
+    /**
+     * Returns a content hash over the initial state and the rules, equal for calculators yielding equal derivations.
+     *
+     * @return
+     */
+    public long fingerprint()
     {
-        List<Alphabet.Symbol> result = initialState;
+        final Fingerprint result = new Fingerprint();
+        fingerprint( result );
+        return result.value();
+    }
+
+    /**
+     * Adds the initial state and rules to a fingerprint.
+     *
+     * @param fingerprint
+     */
+    public void fingerprint(Fingerprint fingerprint)
+    {
+        initialState.fingerprint( fingerprint );
+        rules.fingerprint( fingerprint );
+    }
+
+    /**
+     * Returns whether the derived string can be streamed, see {@link #stream(int, SymbolSink)}.
+     *
+     * @return
+     */
+    boolean isStreamable() {
+        return rules.isContextFree() && rules.isDeterministic();
+    }
+
+    public GrowthMatrix growthMatrix() {
+        return rules.growthMatrix( initialState.alphabet() );
+    }
+
+    /**
+     * Predicts the length of the string after a given number of iterations without deriving it.
+     *
+     * @param iterationCount
+     * @return length, saturated at {@link Long#MAX_VALUE}
+     */
+    public long predictLength(int iterationCount) {
+        return growthMatrix().length( initialState, iterationCount );
+    }
+
+    /**
+     * Predicts how often some symbols occur after a given number of iterations without deriving the string.
+     *
+     * @param iterationCount
+     * @param symbols
+     * @return number of occurrences, saturated at {@link Long#MAX_VALUE}
+     */
+    public long predictCount(int iterationCount, Alphabet.Symbol... symbols) {
+        return growthMatrix().count( initialState, iterationCount, symbols );
+    }
+
+    public SymbolString calculate(int iterationCount) {
+        return calculate( iterationCount, false );
+    }
+
+    /**
+     * Derives the string after a given number of iterations.
+     *
+     * @param iterationCount
+     * @param parallel whether to rewrite each iteration in parallel, see {@link ProductionRules#apply(SymbolString, long, boolean)}
+     * @return
+     */
+    public SymbolString calculate(int iterationCount, boolean parallel)
+    {
+        if ( ! rules.isContextFree() || ! rules.isDeterministic() ) {
+            return calculateIteratively( iterationCount, parallel );
+        }
+        final GrowthMatrix matrix = growthMatrix();
+        final long[] lengths = new long[ iterationCount + 1 ];
+        long[] counts = matrix.parikhVector( initialState );
+        lengths[0] = initialState.length();
+        for ( int i = 1 ; i <= iterationCount ; i++ )
+        {
+            counts = matrix.next( counts );
+            lengths[i] = GrowthMatrix.sum( counts );
+            checkFeasible( i, lengths[i-1], lengths[i] );
+        }
+
+        SymbolString result = initialState;
         for ( int i = 1 ; i <= iterationCount ; i++ )
         {
             long start = System.nanoTime();
-            result = rules.apply( result );
+            result = rules.apply( result, lengths[i], parallel );
             long end = System.nanoTime();
             final float delta = (end-start)/1_000_000f;
             System.out.println( "Iteration " + i + " took " + delta + " ms" );
         }
         return result;
     }
+
+    private SymbolString calculateIteratively(int iterationCount, boolean parallel)
+    {
+        SymbolString result = initialState;
+        for ( int i = 1 ; i <= iterationCount ; i++ )
+        {
+            long start = System.nanoTime();
+            // the length can't be predicted, but it can still be determined before allocating anything
+            final long length = rules.outputLength( result, parallel, i );
+            checkFeasible( i, result.length(), length );
+            result = rules.apply( result, length, parallel, i );
+            long end = System.nanoTime();
+            final float delta = (end-start)/1_000_000f;
+            System.out.println( "Iteration " + i + " took " + delta + " ms" );
+        }
+        return result;
+    }
+
+    /**
+     * Derives the run-length encoded string after a given number of iterations.
+     *
+     * @param iterationCount
+     * @return
+     * @see RunLengthString
+     */
+    public RunLengthString calculateRunLength(int iterationCount)
+    {
+        RunLengthString result = RunLengthString.of( initialState );
+        for ( int i = 1 ; i <= iterationCount ; i++ )
+        {
+            long start = System.nanoTime();
+            result = rules.apply( result );
+            long end = System.nanoTime();
+            final float delta = (end-start)/1_000_000f;
+            System.out.println( "Iteration " + i + " took " + delta + " ms (" + result.runCount() + " runs, " + result.length() + " symbols)" );
+        }
+        return result;
+    }
+
+    /**
+     * Derives the string after a given number of iterations, keeping all intermediate strings in files instead of the heap.
+     *
+     * Each iteration streams the previous level from disk while streaming the next level to disk, the previous
+     * level's file is deleted as soon as it has been rewritten. Heap usage is small and independent of the length of the derived string.
+     *
+     * @param iterationCount
+     * @param directory directory to store files in
+     * @return file holding the result, closing it deletes the file
+     * @throws IOException
+     */
+    public SymbolFile calculateOffHeap(int iterationCount, Path directory) throws IOException
+    {
+        final byte[][] table = rules.compileDeterministic( initialState.alphabet() );
+        SymbolFile result = SymbolFile.of( initialState, directory );
+        // two buffers take turns, once a level has been rewritten its buffer is used for writing the next level
+        ByteBuffer spare = SymbolFile.allocateBuffer();
+        for ( int i = 1 ; i <= iterationCount ; i++ )
+        {
+            long start = System.nanoTime();
+            final SymbolFile previous = result;
+            try {
+                result = previous.apply( table, directory, spare );
+            } finally {
+                previous.close();
+            }
+            spare = previous.buffer();
+            long end = System.nanoTime();
+            final float delta = (end-start)/1_000_000f;
+            System.out.println( "Iteration " + i + " took " + delta + " ms (" + result.length() + " symbols)" );
+        }
+        return result;
+    }
+
+    /**
+     * Derives the string after a given number of iterations depth-first, passing each symbol
+     * of the final string to a sink as soon as it is known.
+     *
+     * The derived string is never materialized, an explicit stack holding one position
+     * inside a rule's successor per iteration is all that's needed.
+     *
+     * @param iterationCount
+     * @param sink
+     */
+    public void stream(int iterationCount, SymbolSink sink)
+    {
+        final byte[][] table = rules.compileDeterministic( initialState.alphabet() );
+        final boolean[] isIdentity = new boolean[ table.length ];
+        for ( int id = 0; id < table.length; id++ ) {
+            isIdentity[id] = table[id].length == 1 && (table[id][0] & 0xff) == id;
+        }
+
+        final byte[][] sequences = new byte[ iterationCount + 1 ][];
+        final int[] positions = new int[ iterationCount + 1 ];
+        sequences[0] = initialState.toByteArray();
+        int depth = 0;
+        while ( depth >= 0 )
+        {
+            final byte[] sequence = sequences[depth];
+            if ( positions[depth] == sequence.length ) {
+                depth--;
+                continue;
+            }
+            final int symbol = sequence[ positions[depth]++ ] & 0xff;
+            if ( depth == iterationCount || isIdentity[symbol] ) {
+                sink.accept( symbol );
+            } else {
+                depth++;
+                sequences[depth] = table[symbol];
+                positions[depth] = 0;
+            }
+        }
+    }
+
+    /**
+     * Renders the string after a given number of iterations as instanced geometry.
+     *
+     * The expansion of each symbol for the last <code>depth</code> iterations is rendered once as a prototype,
+     * the string after <code>iterationCount - depth</code> iterations then places an instance of the prototype
+     * for each of its symbols.
+     *
+     * @param iterationCount
+     * @param depth number of iterations covered by the prototypes
+     * @param renderer
+     * @return
+     * @throws IllegalArgumentException if the expansion of a symbol does not leave the branch stack balanced
+     * @see InstancedGeometry
+     */
+    public InstancedGeometry instanced(int iterationCount, int depth, TableRenderer renderer)
+    {
+        if ( depth < 0 || depth > iterationCount ) {
+            throw new IllegalArgumentException( "Depth must be >= 0 and <= " + iterationCount );
+        }
+        final Alphabet alphabet = initialState.alphabet();
+        final byte[][] table = rules.compileDeterministic( alphabet );
+        final InstancedGeometry.Builder builder = new InstancedGeometry.Builder( renderer.actions() );
+        for ( int id = 0; id < table.length; id++ )
+        {
+            final boolean isIdentity = table[id].length == 1 && (table[id][0] & 0xff) == id;
+            if ( ! isIdentity && renderer.actions().isDefined( id ) )
+            {
+                final SymbolString symbol = new SymbolString.Builder( alphabet, 1 ).append( id ).build();
+                new LSystemCalculator( symbol, rules ).stream( depth, renderer.createSink( builder.startPrototype( id ) ) );
+                if ( builder.openBranches() != 0 ) {
+                    throw new IllegalArgumentException( "Expansion of symbol " + alphabet.get( id ) + " for " + depth +
+                                                        " iterations leaves " + builder.openBranches() + " unbalanced branches" );
+                }
+                builder.endPrototype();
+            }
+        }
+        stream( iterationCount - depth, builder.placementSink() );
+        return builder.build();
+    }
+
+    /**
+     * Derives the string after a given number of iterations as a graph of shared, memoized
+     * sub-expansions.
+     *
+     * @param iterationCount
+     * @return
+     * @see DerivationGraph
+     */
+    public DerivationGraph derivationGraph(int iterationCount) {
+        return new DerivationGraph( initialState, rules.compileDeterministic( initialState.alphabet() ), iterationCount );
+    }
+
+    /**
+     * Returns a random-access view of the string after a given number of iterations
+     * that does not need to derive the string.
+     *
+     * @param iterationCount
+     * @return
+     * @see IndexedDerivation
+     */
+    public IndexedDerivation indexed(int iterationCount) {
+        return new IndexedDerivation( initialState, rules.compileDeterministic( initialState.alphabet() ), iterationCount );
+    }
+
+    private static void checkFeasible(int iteration, long inputLength, long outputLength)
+    {
+        if ( outputLength > SymbolString.MAX_LENGTH ) {
+            throw new IllegalArgumentException( "Iteration " + iteration + " would yield " + outputLength + " symbols, max. supported length is " + SymbolString.MAX_LENGTH );
+        }
+        // input and output of an iteration need to be on the heap at the same time
+        final long required = inputLength + outputLength;
+        final long available = Runtime.getRuntime().maxMemory();
+        if ( required > available ) {
+            throw new IllegalArgumentException( "Iteration " + iteration + " would need at least " + required + " bytes but max. heap size is only " + available + " bytes" );
+        }
+    }
 }
@@ -1,9 +1,26 @@
 package de.codesourcery;
 
-import java.util.List;
 import de.codesourcery.ui.Turtle;
 
 public interface LSystemRenderer
 {
-    void render(List<Alphabet.Symbol> data, LSystem system, Turtle turtle);
+    /**
+     * Prepares rendering and returns a sink that translates each symbol it receives into turtle commands.
+     *
+     * This allows rendering symbols as they are being derived (see {@link LSystemCalculator#stream(int, SymbolSink)})
+     * without ever materializing the full string.
+     *
+     * @param system
+     * @param turtle
+     * @return
+     */
+    SymbolSink createSink(LSystem system, Turtle turtle);
+
+    default void render(SymbolString data, LSystem system, Turtle turtle) {
+        data.forEach( createSink( system, turtle ) );
+    }
+
+    default void render(RunLengthString data, LSystem system, Turtle turtle) {
+        data.forEach( createSink( system, turtle ) );
+    }
 }
@@ -1,9 +1,11 @@
 package de.codesourcery;
 
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
@@ -11,15 +13,25 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.event.MouseWheelEvent;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.List;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 import de.codesourcery.impl.FractalPlant;
 import de.codesourcery.impl.FractalTree;
+import de.codesourcery.ui.Bounds;
+import de.codesourcery.ui.FrameRenderer;
+import de.codesourcery.ui.GridIndex;
+import de.codesourcery.ui.HeadingTable;
 import de.codesourcery.ui.LineBuffer;
+import de.codesourcery.ui.LodPyramid;
+import de.codesourcery.ui.PrimitiveTurtle;
+import de.codesourcery.ui.TileCache;
 import de.codesourcery.ui.Turtle;
 import de.codesourcery.ui.TurtleState;
 
@@ -40,77 +52,51 @@ public class Main extends JFrame
         setVisible( true );
     }
 
-    private static final class Bounds
-    {
-        public float xMin, yMin;
-        public float xMax, yMax;
-
-        public void update(float x, float y) {
-
-            xMin = Math.min( xMin, x );
-            xMax = Math.max( xMax, x );
-
-            yMin = Math.min( yMin, y );
-            yMax = Math.max( yMax, y );
-        }
-
-        /**
-         * Returns an affine transform that centers this bounding box
-         * around the (0,0) coordinate system origin.
-         *
-         * @return
-         */
-        public AffineTransform originTransform() {
-            float dx = xMin + width() /2;
-            float dy = yMin + height() / 2;
-            final float tx = -dx;
-            final float ty = -dy;
-            System.out.println( this+" has origin transform ("+tx+", "+ty+")");
-            return AffineTransform.getTranslateInstance( tx, ty );
-        }
-
-        @Override
-        public String toString()
-        {
-            return "Bounds[ ("+xMin+","+yMin+") -> ("+xMax+", "+yMax+") ] = ( "+width()+" x "+height()+" )";
-        }
-
-        public float width() {
-            return xMax - xMin;
-        }
-
-        public float height() {
-            return yMax - yMin;
-        }
-
-        public void reset() {
-            xMin = xMax = yMin = yMax = 0;
-        }
-
-        public void update(float x1, float y1, float x2, float y2) {
-            update( x1, y1 );
-            update( x2, y2 );
-        }
-    }
-
     public static final class MyPanel extends JPanel implements Turtle
     {
-        public float cursorX, cursorY;
-        public float orientationInDegrees;
-        public boolean penIsDown;
+        // max. distance (in pixels) a simplified line may be off the original one
+        private static final float MAX_PIXEL_ERROR = 0.5f;
+        // time to spend on refining the preview shown while no frame has been completed yet
+        private static final long FRAME_BUDGET_NANOS = 8_000_000;
+        private static final long TILE_CACHE_BYTES = 256 * 1024 * 1024;
+        // max. distance (model space) of a joint from the line that replaces a chain of collinear lines
+        private static final float COMPACTION_TOLERANCE = 1e-3f;
 
         private final float zoomIncrement = 0.6f;
         private float vpCenterX=0.5f, vpCenterY =0.5f;
         private float zoomFactor = 1.0f;
 
-        private final Bounds bounds = new Bounds();
-
-        private final LineBuffer lineBuffer = new LineBuffer();
-        private final LineBuffer tmpBuffer = new LineBuffer();
+        private Bounds bounds = new Bounds();
+
+        private LineBuffer lineBuffer = LineBuffer.withPolylines();
+        // guards lineBuffer and bounds against being copied while lines get drawn through the Turtle interface
+        private final Object sceneLock = new Object();
+
+        // simplified levels plus spatial indices, built in the background from lineBuffer or a copy of it
+        private LodPyramid lod;
+        // bounds of the lines in the pyramid
+        private Bounds lodBounds;
+        // level 0 of the pyramid if it was built from a copy of lineBuffer
+        private LineBuffer lodCopy;
+        // number of lines lineBuffer had when the pyramid was built
+        private int lodSourceLines = -1;
+        // incremented whenever lineBuffer gets replaced or cleared, pyramids built before that are stale
+        private int sceneVersion;
+        private boolean rebuilding;
+        private final TileCache<TileScene> tiles = new TileCache<>( this::paintTile, () -> this.frames.tileRendered(), TILE_CACHE_BYTES,
+            Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 ) );
+        private final FrameRenderer<TileScene> frames = new FrameRenderer<>( tiles, this::repaint );
+
+        private PrimitiveTurtle turtle = new PrimitiveTurtle( lineBuffer, bounds );
 
         private Point dragStart;
         private Point2D.Float dragStartCenter;
 
+        /*
+         * Everything tile workers need, captured on the EDT when a frame gets requested.
+         */
+        private record TileScene(LodPyramid lod, Color color) { }
+
         public MyPanel()
         {
             setFocusable( true );
@@ -169,6 +155,21 @@ public class Main extends JFrame
         protected void paintComponent(Graphics g)
         {
             super.paintComponent( g );
+            if ( lineBuffer.lineCount() == 0 ) {
+                return;
+            }
+
+            long time1 = System.nanoTime();
+            if ( lineBuffer.lineCount() != lodSourceLines && ! rebuilding ) {
+                // lines have been drawn through the Turtle interface
+                rebuild();
+            }
+            final LodPyramid pyramid = lod;
+            if ( pyramid == null ) {
+                return;
+            }
+            final Bounds bounds = lodBounds;
+            long time2 = System.nanoTime();
 
             // 1. transform that centers the data inside model space
             final AffineTransform op1 = bounds.originTransform();
@@ -183,7 +184,10 @@ public class Main extends JFrame
             // 2. transform that scales to screen space
             final AffineTransform op2 = AffineTransform.getScaleInstance( s, s );
 
-            final AffineTransform op3 = AffineTransform.getTranslateInstance( zoomedWidth * vpCenterX, zoomedHeight * vpCenterY );
+            // tiles are aligned to a whole pixel
+            final int offsetX = Math.round( zoomedWidth * vpCenterX );
+            final int offsetY = Math.round( zoomedHeight * vpCenterY );
+            final AffineTransform op3 = AffineTransform.getTranslateInstance( offsetX, offsetY );
 
             System.out.println( "screen space: " + getWidth() + " x " + getHeight() );
             System.out.println("Bounds: "+bounds+", sx: "+sx+", sy: "+sy);
@@ -192,192 +196,373 @@ public class Main extends JFrame
             // center at origin and then scale to screen space
             op2.concatenate( op1 );
             // translate so that model space (0,0) is at the center of the screen
-            op3.concatenate( op2 );
+            final AffineTransform transform = new AffineTransform( op3 );
+            transform.concatenate( op2 );
+
+            // the frame for the current view gets assembled in the background, in the meantime
+            // the last completed frame is shown shifted/scaled to the current view
+            frames.request( new TileScene( pyramid, getForeground() ), s, op2, offsetX, offsetY, getWidth(), getHeight() );
+            final FrameRenderer.Frame frame = frames.lastFrame();
+            if ( frame != null )
+            {
+                try {
+                    final AffineTransform warp = new AffineTransform( transform );
+                    warp.concatenate( frame.transform.createInverse() );
+                    ((Graphics2D) g).drawImage( frame.image, warp, null );
+                } catch (NoninvertibleTransformException e) {
+                    // can't happen, frames are only rendered for invertible transforms
+                }
+            }
+            else
+            {
+                final Rectangle2D visible;
+                try {
+                    visible = transform.createInverse().createTransformedShape( new Rectangle( 0, 0, getWidth(), getHeight() ) ).getBounds2D();
+                } catch (NoninvertibleTransformException e) {
+                    return;
+                }
+                paintPreview( (Graphics2D) g, transform, visible, s, time2 );
+            }
+            long time3 = System.nanoTime();
+            long indexMillis = (time2-time1)/1_000_000;
+            long drawMillis = (time3-time2) / 1_000_000;
+            long totalMillis = (time3-time1) / 1_000_000;
+            System.out.println( "Frame time: " + totalMillis + " ms (index: " + indexMillis + " ms, drawing: " + drawMillis + " ms), " + frames );
+        }
 
-            AffineTransform transform = op3;
+        /**
+         * Derives and renders an L-system in the background, replacing the current scene when done.
+         *
+         * @param system
+         * @param iterationCount
+         */
+        public void load(LSystem system, int iterationCount)
+        {
+            startLoader( () ->
+            {
+                final LineBuffer newLines = LineBuffer.withPolylines();
+                final Bounds newBounds = new Bounds();
+                final PrimitiveTurtle newTurtle = new PrimitiveTurtle( newLines, newBounds );
+                system.render( iterationCount, newTurtle );
+                compact( newLines );
+                final LodPyramid newLod = LodPyramid.build( newLines, newBounds );
+                SwingUtilities.invokeLater( () ->
+                {
+                    discardLod( lineBuffer );
+                    synchronized( sceneLock )
+                    {
+                        lineBuffer = newLines;
+                        bounds = newBounds;
+                        turtle = newTurtle;
+                        sceneVersion++;
+                    }
+                    lod = newLod;
+                    lodBounds = newBounds;
+                    lodSourceLines = newLines.lineCount();
+                    repaint();
+                } );
+            } );
+        }
 
-            long time1 = System.nanoTime();
-            lineBuffer.transform( tmpBuffer, transform , false );
-            long time2 = System.nanoTime();
+        /*
+         * Builds the pyramid for lines drawn through the Turtle interface in the background,
+         * from a copy so that drawing may go on meanwhile.
+         */
+        private void rebuild()
+        {
+            rebuilding = true;
+            final LineBuffer lines = lineBuffer;
+            final Bounds source = bounds;
+            final int version = sceneVersion;
+            startLoader( () ->
+            {
+                final LineBuffer copy = LineBuffer.withPolylines();
+                final Bounds copyBounds = new Bounds();
+                final int sourceLines;
+                synchronized( sceneLock )
+                {
+                    lines.transform( copy, new AffineTransform(), false );
+                    copyBounds.update( source.xMin, source.yMin, source.xMax, source.yMax );
+                    sourceLines = lines.lineCount();
+                }
+                compact( copy );
+                final LodPyramid newLod = LodPyramid.build( copy, copyBounds );
+                SwingUtilities.invokeLater( () ->
+                {
+                    rebuilding = false;
+                    if ( version != sceneVersion )
+                    {
+                        newLod.free();
+                        copy.free();
+                    }
+                    else
+                    {
+                        discardLod( null );
+                        lod = newLod;
+                        lodBounds = copyBounds;
+                        lodCopy = copy;
+                        lodSourceLines = sourceLines;
+                    }
+                    repaint();
+                } );
+            } );
+        }
 
-            final MyVisitor visitor = new MyVisitor( (Graphics2D) g );
-            tmpBuffer.visit( visitor );
+        private static void startLoader(Runnable task)
+        {
+            final Thread thread = new Thread( task, "scene-loader" );
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+        private static void compact(LineBuffer lines)
+        {
+            final long start = System.nanoTime();
+            final int removed = lines.compact( COMPACTION_TOLERANCE );
+            if ( DEBUG ) {
+                System.out.println( "Compaction removed " + removed + " lines in " + (System.nanoTime() - start) / 1_000_000 + " ms, ratio " + lines.compactionRatio() );
+            }
+        }
+
+        /*
+         * Stops background rendering of the current pyramid. Waiting for tile workers to leave the pyramid
+         * and freeing it, along with the lines passed in, happens on a scene-loader thread to keep the EDT responsive.
+         */
+        private void discardLod(LineBuffer retiredLines)
+        {
+            frames.invalidate();
+            tiles.clear();
+            final LodPyramid retired = lod;
+            final LineBuffer retiredCopy = lodCopy;
+            lod = null;
+            lodCopy = null;
+            lodSourceLines = -1;
+            if ( retired == null && retiredLines == null ) {
+                return;
+            }
+            startLoader( () ->
+            {
+                // the frame renderer must stop requesting tiles for the pyramid before the tile cache can drain them
+                frames.awaitInvalidated();
+                if ( retired != null )
+                {
+                    tiles.awaitIdle( scene -> scene.lod() == retired );
+                    retired.free();
+                }
+                if ( retiredCopy != null ) {
+                    retiredCopy.free();
+                }
+                if ( retiredLines != null )
+                {
+                    synchronized( sceneLock ) {
+                        retiredLines.free();
+                    }
+                }
+            } );
+        }
+
+        /*
+         * Draws the coarsest level first, then refines while the frame budget allows.
+         */
+        private void paintPreview(Graphics2D g, AffineTransform transform, Rectangle2D visible, float scale, long frameStart)
+        {
+            final int targetLevel = lod.level( scale, MAX_PIXEL_ERROR );
+            final long deadline = frameStart + FRAME_BUDGET_NANOS;
+            int level = lod.levelCount() - 1;
+            while ( true )
+            {
+                final long levelStart = System.nanoTime();
+                super.paintComponent( g );
+                final MyVisitor visitor = new MyVisitor( g, transform, getWidth(), getHeight() );
+                final int candidates = lod.index( level ).query( (float) visible.getMinX(), (float) visible.getMinY(), (float) visible.getMaxX(), (float) visible.getMaxY(), visitor );
+                visitor.finish();
+                final long levelEnd = System.nanoTime();
+                if ( DEBUG ) {
+                    System.out.println("Level "+level+" (target: "+targetLevel+"): candidate lines: "+candidates+" / drawn: "+visitor.drawn+" in "+visitor.polylines+" polylines");
+                }
+                if ( level <= targetLevel ) {
+                    break;
+                }
+                final float growth = lod.lines( level - 1 ).lineCount() / (float) Math.max( 1, lod.lines( level ).lineCount() );
+                if ( levelEnd + (long) ((levelEnd - levelStart) * growth) > deadline ) {
+                    break;
+                }
+                level--;
+            }
+        }
+
+        /*
+         * Renders a tile from the pyramid it was requested for, called by worker threads.
+         */
+        private void paintTile(TileScene scene, Graphics2D g, AffineTransform transform)
+        {
+            final LodPyramid pyramid = scene.lod();
+            final Rectangle2D area;
+            try {
+                area = transform.createInverse().createTransformedShape( new Rectangle( 0, 0, TileCache.TILE_SIZE, TileCache.TILE_SIZE ) ).getBounds2D();
+            } catch (NoninvertibleTransformException e) {
+                return;
+            }
+            g.setColor( scene.color() );
+            final int level = pyramid.level( (float) transform.getScaleX(), MAX_PIXEL_ERROR );
+            final MyVisitor visitor = new MyVisitor( g, transform, TileCache.TILE_SIZE, TileCache.TILE_SIZE );
+            pyramid.index( level ).query( (float) area.getMinX(), (float) area.getMinY(), (float) area.getMaxX(), (float) area.getMaxY(), visitor );
             visitor.finish();
-            System.out.println("MERGED lines: "+visitor.merged+" / drawn: "+visitor.drawn);
-            long time3 = System.nanoTime();
-            long transformMillis = (time2-time1)/1_000_000;
-            long drawMillis = (time3-time2) / 1_000_000;
-            long totalMillis = (time3-time1) / 1_000_000;
-            System.out.println( "Frame time: " + totalMillis + " ms (transform: " + transformMillis + " ms, drawing: " + drawMillis + " ms" );
         }
 
         @Override
         public Turtle reset()
         {
-            lineBuffer.clear();
-            bounds.reset();
-
-            cursorX = getWidth() / 2;
-            cursorY = getHeight() / 2;
-            orientationInDegrees = 0;
-            penIsDown = false;
+            // the old lines may still be painted from until the pyramid over them has been freed
+            discardLod( lineBuffer );
+            synchronized( sceneLock )
+            {
+                lineBuffer = LineBuffer.withPolylines();
+                bounds = new Bounds();
+                turtle = new PrimitiveTurtle( lineBuffer, bounds );
+                turtle.origin( getWidth() / 2, getHeight() / 2 ).reset();
+                sceneVersion++;
+            }
             return this;
         }
 
         @Override
         public Turtle penUp() {
-            penIsDown = false;
+            turtle.penUp();
             return this;
         }
 
         @Override
         public Turtle penDown() {
-            penIsDown = true;
+            turtle.penDown();
             return this;
         }
 
         @Override
-        public Turtle forward(float len)
-        {
-            final float angleInRad = degToRad( orientationInDegrees-90 );
-            final double dx = len * Math.cos( angleInRad );
-            final double dy = len * Math.sin( angleInRad );
-
-            float x = (float) (cursorX + dx);
-            float y = (float) (cursorY + dy);
-
-            if ( penIsDown ) {
-                lineBuffer.append( cursorX, cursorY, x, y   );
-                bounds.update( cursorX, cursorY, x, y  );
+        public Turtle forward(float len) {
+            synchronized( sceneLock ) {
+                turtle.forward( len );
             }
-            cursorX = x;
-            cursorY = y;
             return this;
         }
 
         @Override
         public Turtle turnLeft(float angleInDeg) {
-            return changeAngle( orientationInDegrees - angleInDeg );
+            turtle.turnLeft( angleInDeg );
+            return this;
         }
 
         @Override
         public Turtle turnRight(float angleInDeg) {
-            return changeAngle( orientationInDegrees + angleInDeg );
+            turtle.turnRight( angleInDeg );
+            return this;
         }
 
         @Override
-        public Turtle recall(TurtleState state)
-        {
-            this.cursorX = state.location().x;
-            this.cursorY = state.location().y;
-            this.penIsDown = state.penIsDown();
-            this.orientationInDegrees = state.orientationInDegrees();
+        public Turtle push() {
+            turtle.push();
             return this;
         }
 
         @Override
-        public Turtle goTo(Point p) {
-            this.cursorX = p.x;
-            this.cursorY = p.y;
+        public Turtle pop() {
+            turtle.pop();
             return this;
         }
 
         @Override
-        public TurtleState state() {
-            return new TurtleState( new Point2D.Float( cursorX, cursorY ), penIsDown, orientationInDegrees );
+        public Turtle headings(HeadingTable table) {
+            turtle.headings( table );
+            return this;
         }
 
-        public Turtle changeAngle(float newAngle) {
-            while ( newAngle > 360 ) {
-                newAngle -= 360;
-            }
-            while ( newAngle < 0 ) {
-                newAngle += 360;
-            }
-            orientationInDegrees = newAngle;
+        @Override
+        public Turtle recall(TurtleState state) {
+            turtle.recall( state );
+            return this;
+        }
+
+        @Override
+        public Turtle goTo(Point p) {
+            turtle.goTo( p );
             return this;
         }
 
-        private static float degToRad(float deg) {
-            return (float) (deg * Math.PI/180f);
+        @Override
+        public TurtleState state() {
+            return turtle.state();
         }
 
+        /*
+         * Draws lines connected to the previous one as a single polyline.
+         */
         private class MyVisitor implements LineBuffer.Visitor
         {
-            private static final boolean MERGE = false;
-
             private final Graphics2D gfx;
+            private final AffineTransform transform;
             private final int w;
             private final int h;
-            public int merged;
+            private final float[] line = new float[4];
             public int drawn;
+            public int polylines;
 
-            private float lastDx, lastDy;
-            private float lastX1, lastY1;
-            private float lastX2, lastY2;
-            private boolean first = true;
+            // current run, in screen space
+            private int[] xPoints = new int[ 64 ];
+            private int[] yPoints = new int[ 64 ];
+            private int pointCount;
+            private float lastX, lastY;
 
-            public MyVisitor(Graphics2D g)
+            public MyVisitor(Graphics2D g, AffineTransform transform, int w, int h)
             {
-                w = getWidth();
-                h = getHeight();
+                this.w = w;
+                this.h = h;
                 gfx = g;
-            }
-
-            public void finish() {
-                if ( ! first ) {
-                    drawLine( lastX1, lastY1, lastX2, lastY2 );
-                }
-            }
-
-            private boolean contains(float  x, float y) {
-                return x >= 0 && y >= 0 && x < w && y < h;
+                this.transform = transform;
             }
 
             @Override
-            public void visitLine(float x1, float y1, float x2, float y2)
+            public void visitLine(float modelX1, float modelY1, float modelX2, float modelY2)
             {
-                if ( contains( x1, y1 ) && contains( x2, y2 ) )
+                line[0] = modelX1;
+                line[1] = modelY1;
+                line[2] = modelX2;
+                line[3] = modelY2;
+                transform.transform( line, 0, line, 0, 2 );
+                // lines crossing the edge of the screen get shortened, not dropped
+                if ( GridIndex.clip( line, 0, 0, w - 1, h - 1 ) )
                 {
-                    if ( MERGE )
+                    drawn++;
+                    if ( pointCount == 0 || line[0] != lastX || line[1] != lastY )
                     {
-                        float dx = x2 - x1;
-                        float dy = y2 - y1;
-
-                        if ( first )
-                        {
-                            first = false;
-                            lastDx = dx;
-                            lastDy = dy;
-                            lastX1 = x1;
-                            lastX2 = x2;
-                            lastY1 = y1;
-                            lastY2 = y2;
-                            return;
-                        }
-
-                        // TODO: Maybe equaly check needs to be replaced with some fuzzy check so account for FP instability ?
-                        if ( lastDx == dx && lastDy == dy && lastX2 == x1 && lastY2 == y1 )
-                        {
-                            lastX2 = x2;
-                            lastY2 = y2;
-                            merged++;
-                            return;
-                        }
-
-                        first = true;
-                        drawLine( lastX1, lastY1, lastX2, lastY2 );
-                        drawLine( x1, y1, x2, y2 );
-                    } else {
-                        drawLine( x1, y1, x2, y2 );
+                        finish();
+                        addPoint( line[0], line[1] );
                     }
+                    addPoint( line[2], line[3] );
+                    lastX = line[2];
+                    lastY = line[3];
+                }
+            }
+
+            private void addPoint(float x, float y)
+            {
+                if ( pointCount == xPoints.length ) {
+                    xPoints = Arrays.copyOf( xPoints, pointCount * 2 );
+                    yPoints = Arrays.copyOf( yPoints, pointCount * 2 );
                 }
+                xPoints[pointCount] = (int) x;
+                yPoints[pointCount++] = (int) y;
             }
 
-            private void drawLine(float x1, float y1, float x2, float y2)
+            /**
+             * Draws the current run.
+             */
+            public void finish()
             {
-                drawn++;
-                gfx.drawLine( (int) x1, (int) y1 , (int) x2, (int) y2 );
+                if ( pointCount > 0 ) {
+                    gfx.drawPolyline( xPoints, yPoints, pointCount );
+                    polylines++;
+                    pointCount = 0;
+                }
             }
         }
     }
@@ -389,10 +574,9 @@ public class Main extends JFrame
             final Main f = new Main();
 
             final LSystem tree = new FractalPlant();
-            final List<Alphabet.Symbol> data = tree.create(11);
 
             // final Turtle wrapper = TurtleSpy.wrap( f.turtle(), x -> System.out.println(x) );
-            tree.createRenderer().render( data, tree, f.turtle() );
+            f.panel.load( tree, 11 );
 
             f.panel.addKeyListener( new KeyAdapter()
             {
@@ -0,0 +1,40 @@
+package de.codesourcery;
+
+import de.codesourcery.ui.Turtle;
+
+/**
+ * An L-system whose modules carry numeric parameters (see {@link ParametricString}).
+ */
+public interface ParametricLSystem
+{
+    ParametricString axiom();
+
+    ParametricRules rules();
+
+    ParametricRenderer createRenderer();
+
+    /**
+     * Derives the string after a given number of iterations.
+     *
+     * @param iterationCount
+     * @return
+     */
+    default ParametricString create(int iterationCount)
+    {
+        final ParametricRules rules = rules();
+        ParametricString result = axiom();
+        for ( int i = 1 ; i <= iterationCount ; i++ )
+        {
+            long start = System.nanoTime();
+            result = rules.apply( result );
+            long end = System.nanoTime();
+            final float delta = (end-start)/1_000_000f;
+            System.out.println( "Iteration " + i + " took " + delta + " ms (" + result.length() + " modules)" );
+        }
+        return result;
+    }
+
+    default void render(int iterationCount, Turtle turtle) {
+        createRenderer().render( create( iterationCount ), this, turtle );
+    }
+}
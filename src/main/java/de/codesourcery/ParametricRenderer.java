@@ -0,0 +1,19 @@
+package de.codesourcery;
+
+import de.codesourcery.ui.Turtle;
+
+public interface ParametricRenderer
+{
+    /**
+     * Prepares rendering and returns a sink that translates each module it receives into turtle commands.
+     *
+     * @param system
+     * @param turtle
+     * @return
+     */
+    ParametricSink createSink(ParametricLSystem system, Turtle turtle);
+
+    default void render(ParametricString data, ParametricLSystem system, Turtle turtle) {
+        data.forEach( createSink( system, turtle ) );
+    }
+}
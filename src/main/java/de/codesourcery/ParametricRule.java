@@ -0,0 +1,116 @@
+package de.codesourcery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A production of a parametric L-system, written <code>predecessor : condition → successor</code>.
+ *
+ * The predecessor is a symbol with formal parameter names like <code>A(l,w)</code>, the condition
+ * an optional boolean expression over those names and the successor a string of modules whose actual
+ * parameters are arithmetic expressions over them, for example <code>F(l)[+(30)A(l*0.7,w)]</code>.
+ * A production only applies to modules having the same symbol and number of parameters as its predecessor.
+ *
+ * Condition and successor parameters are compiled once when the rule is created (see {@link ExpressionParser}).
+ */
+public class ParametricRule
+{
+    public final Alphabet.Symbol expected;
+    public final int parameterCount;
+
+    private final String text;
+    // null if the rule applies unconditionally
+    private final Expression condition;
+    final byte[] successorSymbols;
+    final Expression[][] successorParameters;
+
+    /**
+     * Creates an unconditional production.
+     *
+     * @param alphabet
+     * @param predecessor
+     * @param successor
+     */
+    public ParametricRule(Alphabet alphabet, String predecessor, String successor) {
+        this( alphabet, predecessor, null, successor );
+    }
+
+    /**
+     * Creates a production.
+     *
+     * @param alphabet
+     * @param predecessor symbol with formal parameters, e.g. <code>A(l,w)</code>
+     * @param condition condition that needs to hold for the production to apply, <code>null</code> or blank to always apply
+     * @param successor
+     */
+    public ParametricRule(Alphabet alphabet, String predecessor, String condition, String successor)
+    {
+        final ExpressionParser parser = new ExpressionParser( predecessor, List.of() );
+        this.expected = parser.symbol( alphabet );
+        final List<String> formals = parser.formalParameters();
+        parser.expectEOF();
+        if ( expected.isConstant() ) {
+            throw new IllegalArgumentException( "Predecessor " + expected + " is a constant" );
+        }
+        if ( formals.size() > ParametricString.Builder.MAX_PARAMETERS ) {
+            throw new IllegalArgumentException( "Predecessor " + predecessor + " has too many parameters" );
+        }
+        this.parameterCount = formals.size();
+
+        final boolean isConditional = condition != null && ! condition.isBlank();
+        this.condition = isConditional ? ExpressionParser.parse( condition, formals ) : null;
+
+        final ExpressionParser successorParser = new ExpressionParser( successor, formals );
+        final SymbolString.Builder symbols = new SymbolString.Builder( alphabet, successor.length() );
+        final List<Expression[]> parameters = new ArrayList<>();
+        while ( ! successorParser.isEOF() )
+        {
+            symbols.append( successorParser.symbol( alphabet ) );
+            final List<Expression> actual = successorParser.actualParameters();
+            if ( actual.size() > ParametricString.Builder.MAX_PARAMETERS ) {
+                throw new IllegalArgumentException( "Successor " + successor + " has a module with too many parameters" );
+            }
+            parameters.add( actual.toArray( new Expression[0] ) );
+        }
+        this.successorSymbols = symbols.build().toByteArray();
+        this.successorParameters = parameters.toArray( new Expression[0][] );
+        this.text = predecessor + ( isConditional ? " : " + condition : "" ) + " -> " + successor;
+    }
+
+    public boolean isConditional() {
+        return condition != null;
+    }
+
+    /**
+     * Returns whether this production applies to a module.
+     *
+     * @param symbol
+     * @param arguments
+     * @param argumentCount
+     * @return
+     */
+    public boolean matches(int symbol, float[] arguments, int argumentCount)
+    {
+        return expected.matches( symbol ) && argumentCount == parameterCount &&
+               ( condition == null || condition.evaluate( arguments ) != 0 );
+    }
+
+    /**
+     * Returns the max. number of parameters of any module in the successor.
+     *
+     * @return
+     */
+    int maxSuccessorParameters()
+    {
+        int result = 0;
+        for ( final Expression[] p : successorParameters ) {
+            result = Math.max( result, p.length );
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
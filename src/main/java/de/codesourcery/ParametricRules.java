@@ -0,0 +1,131 @@
+package de.codesourcery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Production rules of a parametric L-system.
+ *
+ * Like {@link ProductionRules}, the rules get compiled into a dispatch table indexed by symbol id
+ * so only the rules for a module's symbol are ever checked. Modules without an applicable rule are copied unchanged.
+ * For symbols with several rules, the first one whose parameter count matches and whose condition holds wins.
+ */
+public class ParametricRules
+{
+    private final List<ParametricRule> rules = new ArrayList<>();
+
+    // candidate rules, indexed by predecessor symbol id
+    private ParametricRule[][] rulesBySymbol;
+    private int maxParameters;
+    // alphabet the table was compiled for
+    private Alphabet compiledAlphabet;
+
+    /**
+     * Applies the rules to a string.
+     *
+     * @param input
+     * @return
+     */
+    public ParametricString apply(ParametricString input)
+    {
+        final ParametricRule[][] table = compile( input.alphabet() );
+        final byte[] symbols = input.symbols();
+        final byte[] parameterCounts = input.parameterCounts();
+        final float[][] columns = input.columns();
+        final int columnCount = Math.max( input.columnCount(), maxParameters );
+
+        final float[] arguments = new float[ columnCount ];
+        final float[] parameters = new float[ columnCount ];
+        // the builder grows as needed, so the capacity is just a guess
+        final int capacity = (int) Math.min( SymbolString.MAX_LENGTH, input.length() * 2L );
+        final ParametricString.Builder result = new ParametricString.Builder( input.alphabet(), columnCount, capacity );
+        for ( int i = 0, len = input.length(); i < len; i++ )
+        {
+            final int symbol = symbols[i] & 0xff;
+            final int count = parameterCounts[i];
+            for ( int k = 0; k < count; k++ ) {
+                arguments[k] = columns[k][i];
+            }
+            final ParametricRule rule = find( table[symbol], symbol, arguments, count );
+            if ( rule == null ) {
+                result.append( symbol, arguments, count );
+                continue;
+            }
+            final byte[] successorSymbols = rule.successorSymbols;
+            final Expression[][] successorParameters = rule.successorParameters;
+            for ( int j = 0; j < successorSymbols.length; j++ )
+            {
+                final Expression[] expressions = successorParameters[j];
+                for ( int k = 0; k < expressions.length; k++ ) {
+                    parameters[k] = expressions[k].evaluate( arguments );
+                }
+                result.append( successorSymbols[j] & 0xff, parameters, expressions.length );
+            }
+        }
+        return result.build();
+    }
+
+    private static ParametricRule find(ParametricRule[] candidates, int symbol, float[] arguments, int count)
+    {
+        if ( candidates != null )
+        {
+            for ( final ParametricRule rule : candidates )
+            {
+                if ( rule.matches( symbol, arguments, count ) ) {
+                    return rule;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the dispatch table for a given alphabet, (re-)compiling it if necessary.
+     *
+     * @param alphabet
+     * @return candidate rules indexed by symbol id, <code>null</code> entries for symbols without rules
+     */
+    private ParametricRule[][] compile(Alphabet alphabet)
+    {
+        if ( rulesBySymbol != null && compiledAlphabet == alphabet && rulesBySymbol.length == alphabet.size() ) {
+            return rulesBySymbol;
+        }
+        final List<List<ParametricRule>> candidates = new ArrayList<>();
+        for ( int id = 0; id < alphabet.size(); id++ ) {
+            candidates.add( new ArrayList<>() );
+        }
+        int max = 0;
+        for ( final ParametricRule rule : rules )
+        {
+            if ( rule.expected.alphabet() != alphabet ) {
+                throw new IllegalArgumentException( "Rule " + rule + " uses a different alphabet" );
+            }
+            candidates.get( rule.expected.id ).add( rule );
+            max = Math.max( max, Math.max( rule.parameterCount, rule.maxSuccessorParameters() ) );
+        }
+        final ParametricRule[][] table = new ParametricRule[ alphabet.size() ][];
+        for ( int id = 0; id < table.length; id++ )
+        {
+            if ( ! candidates.get( id ).isEmpty() ) {
+                table[id] = candidates.get( id ).toArray( new ParametricRule[0] );
+            }
+        }
+        maxParameters = max;
+        rulesBySymbol = table;
+        compiledAlphabet = alphabet;
+        return table;
+    }
+
+    public List<ParametricRule> getRules() {
+        return Collections.unmodifiableList( rules );
+    }
+
+    public ParametricRules add(ParametricRule r1, ParametricRule... additional) {
+        this.rules.add( r1 );
+        Arrays.stream(additional).forEach( this.rules::add );
+        rulesBySymbol = null;
+        return this;
+    }
+}
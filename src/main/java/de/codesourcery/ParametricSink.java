@@ -0,0 +1,17 @@
+package de.codesourcery;
+
+/**
+ * Receives parametric modules one at a time, in order.
+ */
+@FunctionalInterface
+public interface ParametricSink
+{
+    /**
+     * Consumes a module.
+     *
+     * @param symbol symbol id
+     * @param parameters actual parameters, only valid until this method returns
+     * @param parameterCount number of actual parameters
+     */
+    void accept(int symbol, float[] parameters, int parameterCount);
+}
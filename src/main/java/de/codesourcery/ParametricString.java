@@ -0,0 +1,277 @@
+package de.codesourcery;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A string of parametric modules like <code>F(1.5,0.2)</code>.
+ *
+ * Symbol ids are stored in a <code>byte[]</code> array like in {@link SymbolString}, the parameters
+ * are stored next to them in parallel <code>float[]</code> columns (column <code>k</code> holds the <code>k</code>-th parameter
+ * of every module, unused slots are zero) so no per-module objects are needed.
+ *
+ * Instances are immutable, use a {@link Builder} to create them.
+ */
+public final class ParametricString
+{
+    private final Alphabet alphabet;
+    private final byte[] symbols;
+    private final byte[] parameterCounts;
+    private final float[][] columns;
+    private final int length;
+
+    private ParametricString(Alphabet alphabet, byte[] symbols, byte[] parameterCounts, float[][] columns, int length)
+    {
+        this.alphabet = alphabet;
+        this.symbols = symbols;
+        this.parameterCounts = parameterCounts;
+        this.columns = columns;
+        this.length = length;
+    }
+
+    /**
+     * Parses a string of modules whose parameters are constant expressions, for example <code>A(1, 45/2)B</code>.
+     *
+     * @param alphabet
+     * @param input
+     * @return
+     */
+    public static ParametricString parse(Alphabet alphabet, String input)
+    {
+        final ExpressionParser parser = new ExpressionParser( input, List.of() );
+        final Builder builder = new Builder( alphabet, 0, input.length() );
+        final float[] parameters = new float[ Builder.MAX_PARAMETERS ];
+        while ( ! parser.isEOF() )
+        {
+            final Alphabet.Symbol symbol = parser.symbol( alphabet );
+            final List<Expression> actual = parser.actualParameters();
+            if ( actual.size() > parameters.length ) {
+                throw new IllegalArgumentException( "Module " + symbol + " has more than " + Builder.MAX_PARAMETERS + " parameters" );
+            }
+            for ( int i = 0; i < actual.size(); i++ ) {
+                parameters[i] = actual.get( i ).evaluate( null );
+            }
+            builder.append( symbol.id, parameters, actual.size() );
+        }
+        return builder.build();
+    }
+
+    public Alphabet alphabet() {
+        return alphabet;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns the number of parameter columns (max. number of parameters of any module).
+     *
+     * @return
+     */
+    public int columnCount() {
+        return columns.length;
+    }
+
+    /**
+     * Returns the id of the symbol at a given position.
+     *
+     * @param index
+     * @return
+     */
+    public int symbol(int index)
+    {
+        checkIndex( index );
+        return symbols[index] & 0xff;
+    }
+
+    /**
+     * Returns the number of parameters of the module at a given position.
+     *
+     * @param index
+     * @return
+     */
+    public int parameterCount(int index)
+    {
+        checkIndex( index );
+        return parameterCounts[index];
+    }
+
+    /**
+     * Returns a parameter of the module at a given position.
+     *
+     * @param index
+     * @param parameter
+     * @return
+     */
+    public float parameter(int index, int parameter)
+    {
+        if ( parameter < 0 || parameter >= parameterCount( index ) ) {
+            throw new IndexOutOfBoundsException( "Module " + index + " has no parameter " + parameter );
+        }
+        return columns[parameter][index];
+    }
+
+    /**
+     * Passes all modules of this string to a sink.
+     *
+     * @param sink
+     */
+    public void forEach(ParametricSink sink)
+    {
+        final float[] parameters = new float[ columns.length ];
+        for ( int i = 0; i < length; i++ )
+        {
+            final int count = parameterCounts[i];
+            for ( int k = 0; k < count; k++ ) {
+                parameters[k] = columns[k][i];
+            }
+            sink.accept( symbols[i] & 0xff, parameters, count );
+        }
+    }
+
+    /**
+     * Returns the symbols of this string without their parameters.
+     *
+     * @return
+     */
+    public SymbolString toSymbolString() {
+        return SymbolString.wrap( alphabet, Arrays.copyOf( symbols, length ), length );
+    }
+
+    byte[] symbols() {
+        return symbols;
+    }
+
+    byte[] parameterCounts() {
+        return parameterCounts;
+    }
+
+    float[][] columns() {
+        return columns;
+    }
+
+    private void checkIndex(int index)
+    {
+        if ( index < 0 || index >= length ) {
+            throw new IndexOutOfBoundsException( "Index " + index + " out of bounds for length " + length );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder buffer = new StringBuilder();
+        for ( int i = 0; i < length; i++ )
+        {
+            buffer.append( alphabet.get( symbols[i] & 0xff ).symbol );
+            if ( parameterCounts[i] > 0 )
+            {
+                buffer.append( '(' );
+                for ( int k = 0; k < parameterCounts[i]; k++ )
+                {
+                    if ( k > 0 ) {
+                        buffer.append( ',' );
+                    }
+                    buffer.append( columns[k][i] );
+                }
+                buffer.append( ')' );
+            }
+        }
+        return buffer.toString();
+    }
+
+    public static final class Builder
+    {
+        /**
+         * Max. number of parameters per module.
+         */
+        public static final int MAX_PARAMETERS = 127;
+
+        private final Alphabet alphabet;
+        private byte[] symbols;
+        private byte[] parameterCounts;
+        private float[][] columns;
+        private int length;
+
+        /**
+         * @param alphabet
+         * @param columnCount expected max. number of parameters per module, more columns get added as needed
+         * @param initialCapacity
+         */
+        public Builder(Alphabet alphabet, int columnCount, int initialCapacity)
+        {
+            this.alphabet = alphabet;
+            final int capacity = Math.max( 1, initialCapacity );
+            this.symbols = new byte[ capacity ];
+            this.parameterCounts = new byte[ capacity ];
+            this.columns = new float[ columnCount ][ capacity ];
+        }
+
+        /**
+         * Appends a module.
+         *
+         * @param symbolId
+         * @param parameters
+         * @param parameterCount number of parameters to take from the array
+         * @return
+         */
+        public Builder append(int symbolId, float[] parameters, int parameterCount)
+        {
+            if ( parameterCount > MAX_PARAMETERS ) {
+                throw new IllegalArgumentException( "Modules must not have more than " + MAX_PARAMETERS + " parameters" );
+            }
+            if ( length == symbols.length )
+            {
+                final int newSize = (int) Math.min( SymbolString.MAX_LENGTH, (long) length * 3 / 2 + 1 );
+                if ( newSize == length ) {
+                    throw new IllegalStateException( "String would exceed max. length" );
+                }
+                symbols = Arrays.copyOf( symbols, newSize );
+                parameterCounts = Arrays.copyOf( parameterCounts, newSize );
+                for ( int k = 0; k < columns.length; k++ ) {
+                    columns[k] = Arrays.copyOf( columns[k], newSize );
+                }
+            }
+            if ( parameterCount > columns.length )
+            {
+                final int oldCount = columns.length;
+                columns = Arrays.copyOf( columns, parameterCount );
+                for ( int k = oldCount; k < parameterCount; k++ ) {
+                    columns[k] = new float[ symbols.length ];
+                }
+            }
+            symbols[length] = (byte) symbolId;
+            parameterCounts[length] = (byte) parameterCount;
+            for ( int k = 0; k < parameterCount; k++ ) {
+                columns[k][length] = parameters[k];
+            }
+            length++;
+            return this;
+        }
+
+        public Builder append(Alphabet.Symbol symbol, float... parameters) {
+            return append( symbol.id, parameters, parameters.length );
+        }
+
+        public int length() {
+            return length;
+        }
+
+        /**
+         * Creates the string.
+         *
+         * The builder must not be used any longer after this method has been called.
+         *
+         * @return
+         */
+        public ParametricString build()
+        {
+            final ParametricString result = new ParametricString( alphabet, symbols, parameterCounts, columns, length );
+            symbols = null;
+            parameterCounts = null;
+            columns = null;
+            return result;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package de.codesourcery;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -8,34 +7,132 @@ import java.util.List;
  *  For any symbol A which is a member of the set V which does not appear on the left hand side of a production in P,
  *  the identity production A → A is assumed;
  *  These symbols are called constants or terminals. (See Law of identity).
+ *
+ *  Context-sensitive productions (written <code>L &lt; A &gt; R → successor</code>) additionally require the predecessor
+ *  to be preceded by the left context <code>L</code> and followed by the right context <code>R</code>, either of which may be empty.
+ *
+ *  Several productions with the same predecessor and contexts that were created with a weight make up a stochastic production,
+ *  each of them gets picked with a probability proportional to its weight. Productions created without a weight keep the
+ *  classic meaning: the first one for a predecessor and contexts wins (see {@link ProductionRules#alternatives(List)}).
  */
 public class ProductionRule
 {
     public final Alphabet.Symbol expected;
-    public final List<Alphabet.Symbol> replacement;
+    public final SymbolString replacement;
+    public final SymbolString leftContext;
+    public final SymbolString rightContext;
+    public final float weight;
+    // whether this production was created with an explicit weight
+    public final boolean hasWeight;
 
     public ProductionRule(Alphabet.Symbol expected, List<Alphabet.Symbol> replacement)
     {
+        this( expected, SymbolString.of( expected.alphabet(), replacement ) );
+    }
+
+    public ProductionRule(Alphabet.Symbol expected, SymbolString replacement)
+    {
+        this( SymbolString.of( expected.alphabet() ), expected, SymbolString.of( expected.alphabet() ), replacement );
+    }
+
+    /**
+     * Creates a stochastic production.
+     *
+     * @param expected the predecessor
+     * @param replacement the successor
+     * @param weight relative probability of this production among all productions with the same predecessor
+     */
+    public ProductionRule(Alphabet.Symbol expected, SymbolString replacement, float weight)
+    {
+        this( SymbolString.of( expected.alphabet() ), expected, SymbolString.of( expected.alphabet() ), replacement, weight );
+    }
+
+    /**
+     * Creates a context-sensitive production.
+     *
+     * @param leftContext symbols that need to precede the predecessor, may be empty
+     * @param expected the predecessor
+     * @param rightContext symbols that need to follow the predecessor, may be empty
+     * @param replacement the successor
+     */
+    public ProductionRule(SymbolString leftContext, Alphabet.Symbol expected, SymbolString rightContext, SymbolString replacement)
+    {
+        this( leftContext, expected, rightContext, replacement, 1f, false );
+    }
+
+    /**
+     * Creates a context-sensitive, stochastic production.
+     *
+     * @param leftContext symbols that need to precede the predecessor, may be empty
+     * @param expected the predecessor
+     * @param rightContext symbols that need to follow the predecessor, may be empty
+     * @param replacement the successor
+     * @param weight relative probability of this production among all productions with the same predecessor and contexts
+     */
+    public ProductionRule(SymbolString leftContext, Alphabet.Symbol expected, SymbolString rightContext, SymbolString replacement, float weight)
+    {
+        this( leftContext, expected, rightContext, replacement, weight, true );
+    }
+
+    private ProductionRule(SymbolString leftContext, Alphabet.Symbol expected, SymbolString rightContext, SymbolString replacement, float weight, boolean hasWeight)
+    {
+        if ( ! ( weight > 0 ) || Float.isInfinite( weight ) ) {
+            throw new IllegalArgumentException( "Weight must be > 0 and finite, was " + weight );
+        }
+        final Alphabet alphabet = expected.alphabet();
+        if ( replacement.alphabet() != alphabet || leftContext.alphabet() != alphabet || rightContext.alphabet() != alphabet ) {
+            throw new IllegalArgumentException( "Predecessor, successor and contexts need to use the same alphabet" );
+        }
         this.expected = expected;
         this.replacement = replacement;
+        this.leftContext = leftContext;
+        this.rightContext = rightContext;
+        this.weight = weight;
+        this.hasWeight = hasWeight;
+    }
+
+    public boolean isContextSensitive() {
+        return ! leftContext.isEmpty() || ! rightContext.isEmpty();
     }
 
-    public List<Alphabet.Symbol> apply(List<Alphabet.Symbol> input,int offset)
+    public SymbolString apply(SymbolString input,int offset)
     {
-        List<Alphabet.Symbol> result = new ArrayList<>(input.size() -1 + replacement.size());
-        result.addAll( input.subList( 0, offset ) );
-        result.addAll( offset, replacement );
-        result.addAll( input.subList( offset + 1, input.size() ) );
-        return result;
+        final SymbolString.Builder result = new SymbolString.Builder( input.alphabet(), input.length() -1 + replacement.length() );
+        for ( int i = 0; i < offset; i++ ) {
+            result.append( input.get( i ) );
+        }
+        result.append( replacement );
+        for ( int i = offset + 1; i < input.length(); i++ ) {
+            result.append( input.get( i ) );
+        }
+        return result.build();
+    }
+
+    /**
+     * Returns whether this production has the same predecessor and contexts as another one,
+     * so both are alternatives of the same stochastic production.
+     *
+     * @param other
+     * @return
+     */
+    public boolean isAlternativeOf(ProductionRule other) {
+        return expected == other.expected && leftContext.equals( other.leftContext ) && rightContext.equals( other.rightContext );
     }
 
     public boolean matches(Alphabet.Symbol symbol) {
         return symbol == expected;
     }
 
+    public boolean matches(int symbolId) {
+        return expected.matches( symbolId );
+    }
+
     @Override
     public String toString()
     {
-        return expected + " -> " + replacement;
+        final String left = leftContext.isEmpty() ? "" : leftContext + " < ";
+        final String right = rightContext.isEmpty() ? "" : " > " + rightContext;
+        final String w = hasWeight ? " (" + weight + ")" : "";
+        return left + expected + right + " -> " + replacement + w;
     }
 }
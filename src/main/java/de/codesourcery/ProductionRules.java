@@ -2,7 +2,10 @@ package de.codesourcery;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.IntStream;
+import de.codesourcery.util.Fingerprint;
 
 /**
  * A set of production rules or productions defining the way variables can be replaced with
@@ -11,38 +14,573 @@ import java.util.List;
  * For any symbol A which is a member of the set V which does not appear on the left hand side of a production in P,
  * the identity production A → A is assumed;
  * These symbols are called constants or terminals. (See Law of identity).
+ *
+ * Before rewriting, the rules get compiled into a dispatch table indexed by symbol id
+ * that maps every symbol straight to its successor (or to itself if no rule applies), so
+ * rewriting a symbol takes constant time regardless of the number of rules.
+ *
+ * Large inputs can optionally be rewritten in parallel, see {@link #apply(SymbolString, long, boolean)}.
+ *
+ * Context-sensitive rules (see {@link ProductionRule#isContextSensitive()}) take precedence over context-free ones
+ * for the same predecessor and are matched using a precompiled automaton (see {@link ContextMatcher}).
+ * Branch symbols used for context matching default to <code>[</code> and <code>]</code>
+ * (if the alphabet has them), see {@link #branches(Alphabet.Symbol, Alphabet.Symbol)}.
+ *
+ * Rules with a weight sharing the same predecessor and contexts are alternatives of a stochastic production (see {@link ProductionRule#weight}),
+ * among rules without a weight the first one wins (see {@link #alternatives(List)}).
+ * The alternative used for a symbol only depends on the {@link #seed(long) seed}, the iteration and the symbol's
+ * position in the input, so stochastic derivations are reproducible and identical no matter whether they run sequentially or in parallel.
  */
 public class ProductionRules
 {
-    public final List<ProductionRule> rules = new ArrayList<>();
+    /**
+     * Number of input symbols processed by a single task when rewriting in parallel.
+     */
+    private static final int CHUNK_SIZE = 64*1024;
 
-    public List<Alphabet.Symbol> apply(List<Alphabet.Symbol> input)
+    private final List<ProductionRule> rules = new ArrayList<>();
+
+    private final List<Alphabet.Symbol> ignored = new ArrayList<>();
+    private Alphabet.Symbol branchOpen;
+    private Alphabet.Symbol branchClose;
+    private long seed;
+
+    // successor symbol ids, indexed by predecessor symbol id
+    private byte[][] successors;
+    // alphabet the table was compiled for, alphabets only ever grow so the size tells whether symbols got added since
+    private Alphabet compiledAlphabet;
+    private int compiledSize;
+    // context-free alternatives indexed by predecessor symbol id, null if all context-free rules are deterministic
+    private Alternatives[] alternatives;
+    // null if all rules are context-free
+    private ContextMatcher contextMatcher;
+
+    @FunctionalInterface
+    private interface SuccessorLookup
+    {
+        byte[] successor(int index);
+    }
+
+    public SymbolString apply(SymbolString input) {
+        return apply( input, false );
+    }
+
+    /**
+     * Applies deterministic rules to a string.
+     *
+     * @param input
+     * @param parallel whether to rewrite in parallel using the common fork-join pool
+     * @return
+     * @throws IllegalStateException if the rules are stochastic, use {@link #apply(SymbolString, boolean, int)} instead
+     */
+    public SymbolString apply(SymbolString input, boolean parallel) {
+        assertDeterministic();
+        return apply( input, parallel, 0 );
+    }
+
+    private void assertDeterministic()
+    {
+        if ( ! isDeterministic() ) {
+            throw new IllegalStateException( "Stochastic rules need the number of the iteration" );
+        }
+    }
+
+    /**
+     * Applies the rules to a string.
+     *
+     * @param input
+     * @param parallel whether to rewrite in parallel using the common fork-join pool
+     * @param iteration number of the iteration, used to pick alternatives of stochastic productions
+     * @return
+     */
+    public SymbolString apply(SymbolString input, boolean parallel, int iteration)
+    {
+        final byte[][] table = compile( input.alphabet() );
+        if ( contextMatcher != null || alternatives != null ) {
+            return apply( input, lookup( input, table, iteration ), -1, parallel );
+        }
+        final byte[] data = input.array();
+        long outputLength = 0;
+        for ( int i = 0, len = input.length() ; i < len ; i++ ) {
+            outputLength += table[ data[i] & 0xff ].length;
+        }
+        return apply( input, outputLength, parallel );
+    }
+
+    /**
+     * Returns the length of the string {@link #apply(SymbolString, boolean, int)} would yield, without allocating it.
+     *
+     * @param input
+     * @param parallel whether to compute in parallel using the common fork-join pool
+     * @param iteration number of the iteration, used to pick alternatives of stochastic productions
+     * @return
+     */
+    long outputLength(SymbolString input, boolean parallel, int iteration)
+    {
+        final byte[][] table = compile( input.alphabet() );
+        final SuccessorLookup lookup = lookup( input, table, iteration );
+        final IntStream positions = IntStream.range( 0, input.length() );
+        return (parallel && input.length() > CHUNK_SIZE ? positions.parallel() : positions).mapToLong( i -> lookup.successor( i ).length ).sum();
+    }
+
+    /**
+     * Applies the rules to a string whose output length is already known (see {@link #outputLength(SymbolString, boolean, int)}).
+     *
+     * @param input
+     * @param outputLength exact length of the result
+     * @param parallel whether to rewrite in parallel using the common fork-join pool
+     * @param iteration number of the iteration, used to pick alternatives of stochastic productions
+     * @return
+     */
+    SymbolString apply(SymbolString input, long outputLength, boolean parallel, int iteration)
+    {
+        checkLength( outputLength );
+        return apply( input, lookup( input, compile( input.alphabet() ), iteration ), outputLength, parallel );
+    }
+
+    /**
+     * Applies the rules to a string whose output length is already known (see {@link GrowthMatrix}).
+     *
+     * @param input
+     * @param outputLength exact length of the result
+     * @return
+     */
+    public SymbolString apply(SymbolString input, long outputLength) {
+        return apply( input, outputLength, false );
+    }
+
+    /**
+     * Applies the rules to a string whose output length is already known (see {@link GrowthMatrix}).
+     *
+     * In parallel mode, the input is split into fixed-size chunks and the output length of each chunk gets
+     * computed concurrently. A prefix sum over those lengths yields each chunk's offset in the output, so all chunks can then
+     * be rewritten concurrently into one preallocated array. The result is identical to the sequential one.
+     *
+     * @param input
+     * @param outputLength exact length of the result
+     * @param parallel whether to rewrite in parallel using the common fork-join pool
+     * @return
+     * @throws IllegalStateException if the rules are stochastic
+     */
+    public SymbolString apply(SymbolString input, long outputLength, boolean parallel)
+    {
+        assertDeterministic();
+        checkLength( outputLength );
+        final Alphabet alphabet = input.alphabet();
+        final byte[][] table = compile( alphabet );
+        if ( contextMatcher != null || alternatives != null ) {
+            return apply( input, lookup( input, table, 0 ), outputLength, parallel );
+        }
+
+        final int inputLen = input.length();
+        final byte[] data = input.array();
+        if ( parallel && inputLen > CHUNK_SIZE ) {
+            return applyParallel( input, i -> table[ data[i] & 0xff ], outputLength );
+        }
+        final SymbolString.Builder result = new SymbolString.Builder( alphabet, (int) outputLength );
+        for ( int i = 0 ; i < inputLen ; i++ )
+        {
+            result.append( table[ data[i] & 0xff ] );
+        }
+        return result.build();
+    }
+
+    /**
+     * Applies the rules to a run-length encoded string without expanding it.
+     *
+     * A run of <code>k</code> symbols whose successor consists of <code>m</code> copies of a single symbol
+     * becomes a single run of <code>k*m</code> symbols, other runs get expanded <code>k</code> times.
+     *
+     * @param input
+     * @return
+     */
+    public RunLengthString apply(RunLengthString input)
+    {
+        final Alphabet alphabet = input.alphabet();
+        final byte[][] table = compileDeterministic( alphabet );
+
+        // symbol all successor symbols are equal to, -1 if they differ
+        final int[] uniformSymbol = new int[ table.length ];
+        for ( int id = 0; id < table.length; id++ )
+        {
+            final byte[] successor = table[id];
+            uniformSymbol[id] = successor.length > 0 ? successor[0] & 0xff : -1;
+            for ( final byte b : successor )
+            {
+                if ( (b & 0xff) != uniformSymbol[id] ) {
+                    uniformSymbol[id] = -1;
+                    break;
+                }
+            }
+        }
+
+        final RunLengthString.Builder result = new RunLengthString.Builder( alphabet, input.runCount() * 2 );
+        for ( int run = 0, runCount = input.runCount(); run < runCount; run++ )
+        {
+            final int symbol = input.symbol( run );
+            final long count = input.count( run );
+            final byte[] successor = table[symbol];
+            if ( successor.length == 0 ) {
+                continue;
+            }
+            if ( uniformSymbol[symbol] != -1 ) {
+                result.append( uniformSymbol[symbol], Math.multiplyExact( count, successor.length ) );
+                continue;
+            }
+            for ( long i = 0; i < count; i++ )
+            {
+                for ( final byte b : successor ) {
+                    result.append( b & 0xff, 1 );
+                }
+            }
+        }
+        return result.build();
+    }
+
+    private static void checkLength(long outputLength)
+    {
+        if ( outputLength > SymbolString.MAX_LENGTH ) {
+            throw new IllegalArgumentException( "Result would have " + outputLength + " symbols, max. supported length is " + SymbolString.MAX_LENGTH );
+        }
+    }
+
+    private SuccessorLookup lookup(SymbolString input, byte[][] table, int iteration)
+    {
+        final byte[] data = input.array();
+        final int length = input.length();
+        final long seed = this.seed;
+        final Alternatives[] contextFree = alternatives;
+        final ContextMatcher matcher = contextMatcher;
+        final int[] branches = matcher != null ? matcher.matchBranches( data, length ) : null;
+        return i ->
+        {
+            if ( matcher != null )
+            {
+                final Alternatives match = matcher.match( data, length, i, branches );
+                if ( match != null ) {
+                    return match.choose( seed, iteration, i );
+                }
+            }
+            final int symbol = data[i] & 0xff;
+            if ( contextFree != null && contextFree[symbol] != null ) {
+                return contextFree[symbol].choose( seed, iteration, i );
+            }
+            return table[symbol];
+        };
+    }
+
+    /*
+     * Applies the rules using a lookup that selects each position's successor.
+     */
+    private static SymbolString apply(SymbolString input, SuccessorLookup lookup, long outputLength, boolean parallel)
+    {
+        final int inputLen = input.length();
+        if ( parallel && inputLen > CHUNK_SIZE ) {
+            return applyParallel( input, lookup, outputLength );
+        }
+        if ( outputLength < 0 )
+        {
+            outputLength = 0;
+            for ( int i = 0 ; i < inputLen ; i++ ) {
+                outputLength += lookup.successor( i ).length;
+            }
+            checkLength( outputLength );
+        }
+        final SymbolString.Builder result = new SymbolString.Builder( input.alphabet(), (int) outputLength );
+        for ( int i = 0 ; i < inputLen ; i++ ) {
+            result.append( lookup.successor( i ) );
+        }
+        return result.build();
+    }
+
+    /*
+     * @param outputLength expected output length or -1 if unknown
+     */
+    private static SymbolString applyParallel(SymbolString input, SuccessorLookup lookup, long outputLength)
     {
-        List<Alphabet.Symbol> result = new ArrayList<>( Math.round( input.size() * 2.5f) );
+        final int inputLen = input.length();
+        final int chunkCount = (inputLen + CHUNK_SIZE - 1) / CHUNK_SIZE;
 
+        // 1. output length of each chunk
+        final long[] offsets = new long[ chunkCount + 1 ];
+        IntStream.range( 0, chunkCount ).parallel().forEach( chunk ->
+        {
+            final int end = Math.min( inputLen, (chunk + 1) * CHUNK_SIZE );
+            long len = 0;
+            for ( int i = chunk * CHUNK_SIZE; i < end; i++ ) {
+                len += lookup.successor( i ).length;
+            }
+            offsets[chunk + 1] = len;
+        } );
+
+        // 2. prefix sum yields each chunk's offset in the output
+        for ( int i = 1; i <= chunkCount; i++ ) {
+            offsets[i] += offsets[i - 1];
+        }
+        if ( outputLength < 0 ) {
+            outputLength = offsets[chunkCount];
+            checkLength( outputLength );
+        }
+        else if ( offsets[chunkCount] != outputLength ) {
+            throw new IllegalArgumentException( "Expected output length " + outputLength + " but got " + offsets[chunkCount] );
+        }
+
+        // 3. rewrite all chunks into disjoint regions of the output
+        final byte[] output = new byte[ (int) outputLength ];
+        IntStream.range( 0, chunkCount ).parallel().forEach( chunk ->
+        {
+            final int end = Math.min( inputLen, (chunk + 1) * CHUNK_SIZE );
+            int ptr = (int) offsets[chunk];
+            for ( int i = chunk * CHUNK_SIZE; i < end; i++ )
+            {
+                final byte[] successor = lookup.successor( i );
+                if ( successor.length == 1 ) {
+                    output[ptr++] = successor[0];
+                } else {
+                    System.arraycopy( successor, 0, output, ptr, successor.length );
+                    ptr += successor.length;
+                }
+            }
+        } );
+        return SymbolString.wrap( input.alphabet(), output, (int) outputLength );
+    }
+
+    /**
+     * Returns the growth matrix of this rule set.
+     *
+     * @param alphabet
+     * @return
+     */
+    public GrowthMatrix growthMatrix(Alphabet alphabet) {
+        return GrowthMatrix.of( this, alphabet );
+    }
+
+    /**
+     * Returns the dispatch table for a given alphabet, (re-)compiling it if necessary.
+     *
+     * For symbols with context-sensitive rules, the table holds the context-free fallback,
+     * for stochastic productions it holds the first alternative.
+     *
+     * @param alphabet
+     * @return successor symbol ids, indexed by predecessor symbol id
+     */
+    byte[][] compile(Alphabet alphabet)
+    {
+        if ( successors != null && compiledAlphabet == alphabet && compiledSize == alphabet.size() ) {
+            return successors;
+        }
+        final byte[][] table = new byte[ alphabet.size() ][];
+        final List<List<ProductionRule>> rulesBySymbol = new ArrayList<>();
+        for ( int id = 0; id < table.length; id++ ) {
+            rulesBySymbol.add( new ArrayList<>() );
+        }
+        boolean isContextFree = true;
+        for ( final ProductionRule rule : rules )
+        {
+            if ( rule.expected.alphabet() != alphabet ) {
+                throw new IllegalArgumentException( "Rule " + rule + " uses a different alphabet" );
+            }
+            if ( rule.isContextSensitive() ) {
+                isContextFree = false;
+                continue;
+            }
+            // constants are never replaced
+            if ( ! rule.expected.isConstant() ) {
+                rulesBySymbol.get( rule.expected.id ).add( rule );
+            }
+        }
+        Alternatives[] stochastic = null;
+        for ( int id = 0; id < table.length; id++ )
+        {
+            final List<ProductionRule> candidates = alternatives( rulesBySymbol.get( id ) );
+            if ( candidates.isEmpty() ) {
+                table[id] = new byte[] { (byte) id };
+                continue;
+            }
+            table[id] = candidates.get( 0 ).replacement.toByteArray();
+            if ( candidates.size() > 1 )
+            {
+                if ( stochastic == null ) {
+                    stochastic = new Alternatives[ table.length ];
+                }
+                stochastic[id] = new Alternatives( candidates );
+            }
+        }
+        alternatives = stochastic;
+
+        contextMatcher = null;
+        if ( ! isContextFree )
+        {
+            final boolean[] isIgnored = new boolean[ alphabet.size() ];
+            ignored.forEach( s -> isIgnored[s.id] = true );
+            final int open = branchOpen != null ? branchOpen.id : find( alphabet, '[' );
+            final int close = branchClose != null ? branchClose.id : find( alphabet, ']' );
+            contextMatcher = new ContextMatcher( alphabet, rules, isIgnored, open, close );
+        }
+        successors = table;
+        compiledAlphabet = alphabet;
+        compiledSize = table.length;
+        return table;
+    }
+
+    /**
+     * Returns the dispatch table for a given alphabet, failing if there are context-sensitive or stochastic rules.
+     *
+     * @param alphabet
+     * @return successor symbol ids, indexed by predecessor symbol id
+     * @throws UnsupportedOperationException if this rule set is context-sensitive or stochastic
+     */
+    byte[][] compileDeterministic(Alphabet alphabet)
+    {
+        final byte[][] table = compile( alphabet );
+        if ( contextMatcher != null ) {
+            throw new UnsupportedOperationException( "Operation is only supported for context-free rules" );
+        }
+        if ( alternatives != null ) {
+            throw new UnsupportedOperationException( "Operation is only supported for deterministic rules" );
+        }
+        return table;
+    }
+
+    /**
+     * Returns the rules that take part in a production, given all rules with the same predecessor and contexts.
+     *
+     * If the first rule has no weight, it wins and all others are ignored, like for classic deterministic L-systems.
+     * Otherwise all rules with a weight are alternatives of a stochastic production.
+     *
+     * @param group rules with the same predecessor and contexts, in order of definition
+     * @return
+     */
+    static List<ProductionRule> alternatives(List<ProductionRule> group)
+    {
+        if ( group.isEmpty() || ! group.get( 0 ).hasWeight ) {
+            return group.isEmpty() ? group : List.of( group.get( 0 ) );
+        }
+        return group.stream().filter( r -> r.hasWeight ).toList();
+    }
+
+    private static int find(Alphabet alphabet, char c)
+    {
+        for ( int id = 0; id < alphabet.size(); id++ )
+        {
+            if ( alphabet.get( id ).symbol == c ) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether all rules are context-free.
+     *
+     * @return
+     */
+    public boolean isContextFree() {
+        return rules.stream().noneMatch( ProductionRule::isContextSensitive );
+    }
+
+    /**
+     * Returns whether there are no stochastic productions, so every symbol has at most one successor.
+     *
+     * @return
+     * @see #alternatives(List)
+     */
+    public boolean isDeterministic()
+    {
 outer:
-        for ( int i = 0 ; i < input.size() ; i++ )
+        for ( int i = 0; i < rules.size(); i++ )
         {
-            final Alphabet.Symbol symbol = input.get( i );
-            if ( symbol.isConstant() ) {
-                result.add( symbol );
+            final ProductionRule first = rules.get( i );
+            if ( ! first.hasWeight || first.expected.isConstant() ) {
                 continue;
             }
-            for ( ProductionRule rule : rules )
+            for ( int j = 0; j < i; j++ )
             {
-                if ( rule.matches( symbol ) )
-                {
-                    result.addAll( rule.replacement );
+                // only the first rule of a group decides
+                if ( rules.get( j ).isAlternativeOf( first ) ) {
                     continue outer;
                 }
             }
+            for ( int j = i + 1; j < rules.size(); j++ )
+            {
+                if ( rules.get( j ).isAlternativeOf( first ) && rules.get( j ).hasWeight ) {
+                    return false;
+                }
+            }
         }
-        return result;
+        return true;
+    }
+
+    /**
+     * Adds everything that affects derivations to a fingerprint.
+     *
+     * @param fingerprint
+     */
+    public void fingerprint(Fingerprint fingerprint)
+    {
+        fingerprint.add( rules.size() );
+        for ( final ProductionRule rule : rules )
+        {
+            rule.leftContext.fingerprint( fingerprint );
+            fingerprint.add( rule.expected.symbol ).add( rule.expected.isConstant() );
+            rule.rightContext.fingerprint( fingerprint );
+            rule.replacement.fingerprint( fingerprint );
+            fingerprint.add( rule.weight ).add( rule.hasWeight );
+        }
+        fingerprint.add( ignored.size() );
+        for ( final Alphabet.Symbol s : ignored ) {
+            fingerprint.add( s.symbol );
+        }
+        fingerprint.add( branchOpen == null ? -1 : branchOpen.symbol );
+        fingerprint.add( branchClose == null ? -1 : branchClose.symbol );
+        fingerprint.add( seed );
+    }
+
+    /**
+     * Sets the seed used to pick alternatives of stochastic productions.
+     *
+     * @param seed
+     * @return
+     */
+    public ProductionRules seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Sets symbols to skip when matching contexts (typically turtle rotations).
+     *
+     * @param symbols
+     * @return
+     */
+    public ProductionRules ignore(Alphabet.Symbol... symbols) {
+        ignored.addAll( Arrays.asList( symbols ) );
+        successors = null;
+        return this;
+    }
+
+    /**
+     * Sets the symbols that start and end a branch, used to skip branches when matching contexts.
+     *
+     * @param open
+     * @param close
+     * @return
+     */
+    public ProductionRules branches(Alphabet.Symbol open, Alphabet.Symbol close) {
+        this.branchOpen = open;
+        this.branchClose = close;
+        successors = null;
+        return this;
+    }
+
+    public List<ProductionRule> getRules() {
+        return Collections.unmodifiableList( rules );
     }
 
     public ProductionRules add(ProductionRule r1, ProductionRule... additional) {
         this.rules.add( r1 );
         Arrays.stream(additional).forEach( this.rules::add );
+        successors = null;
         return this;
     }
 }
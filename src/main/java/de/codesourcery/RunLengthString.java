@@ -0,0 +1,181 @@
+package de.codesourcery;
+
+import java.util.Arrays;
+
+/**
+ * A run-length encoded string of symbols.
+ *
+ * Consecutive occurrences of the same symbol are stored as a single run (symbol id plus repeat count),
+ * which is very compact for strings derived from rules like <code>F → FF</code> that produce long runs
+ * of the same symbol. Such strings can be rewritten without expanding them (see {@link ProductionRules#apply(RunLengthString)})
+ * and renderers can handle a whole run at once (see {@link SymbolSink#accept(int, long)}).
+ *
+ * Instances are immutable, use a {@link Builder} to create them.
+ */
+public final class RunLengthString
+{
+    private final Alphabet alphabet;
+    private final byte[] symbols;
+    private final long[] counts;
+    private final int runCount;
+    private final long length;
+
+    private RunLengthString(Alphabet alphabet, byte[] symbols, long[] counts, int runCount, long length)
+    {
+        this.alphabet = alphabet;
+        this.symbols = symbols;
+        this.counts = counts;
+        this.runCount = runCount;
+        this.length = length;
+    }
+
+    public static RunLengthString of(SymbolString input)
+    {
+        final Builder builder = new Builder( input.alphabet(), 16 );
+        input.forEach( symbol -> builder.append( symbol, 1 ) );
+        return builder.build();
+    }
+
+    public Alphabet alphabet() {
+        return alphabet;
+    }
+
+    /**
+     * Returns the number of symbols in this string.
+     *
+     * @return
+     */
+    public long length() {
+        return length;
+    }
+
+    public int runCount() {
+        return runCount;
+    }
+
+    /**
+     * Returns the symbol of a run.
+     *
+     * @param run
+     * @return symbol id
+     */
+    public int symbol(int run) {
+        return symbols[run] & 0xff;
+    }
+
+    /**
+     * Returns the number of repetitions of a run.
+     *
+     * @param run
+     * @return
+     */
+    public long count(int run) {
+        return counts[run];
+    }
+
+    /**
+     * Passes all runs of this string to a sink.
+     *
+     * @param sink
+     */
+    public void forEach(SymbolSink sink)
+    {
+        for ( int i = 0; i < runCount; i++ ) {
+            sink.accept( symbols[i] & 0xff, counts[i] );
+        }
+    }
+
+    public SymbolString toSymbolString()
+    {
+        if ( length > SymbolString.MAX_LENGTH ) {
+            throw new IllegalStateException( "String has " + length + " symbols, max. supported length is " + SymbolString.MAX_LENGTH );
+        }
+        final SymbolString.Builder builder = new SymbolString.Builder( alphabet, (int) length );
+        for ( int i = 0; i < runCount; i++ )
+        {
+            for ( long j = counts[i]; j > 0; j-- ) {
+                builder.append( symbols[i] & 0xff );
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder buffer = new StringBuilder();
+        for ( int i = 0; i < runCount; i++ )
+        {
+            buffer.append( alphabet.get( symbols[i] & 0xff ).symbol );
+            if ( counts[i] > 1 ) {
+                buffer.append( '{' ).append( counts[i] ).append( '}' );
+            }
+        }
+        return buffer.toString();
+    }
+
+    public static final class Builder
+    {
+        private final Alphabet alphabet;
+        private byte[] symbols;
+        private long[] counts;
+        private int runCount;
+        private long length;
+
+        public Builder(Alphabet alphabet, int initialCapacity)
+        {
+            this.alphabet = alphabet;
+            this.symbols = new byte[ Math.max( 1, initialCapacity ) ];
+            this.counts = new long[ symbols.length ];
+        }
+
+        /**
+         * Appends a run of symbols, merging it with the previous run if it has the same symbol.
+         *
+         * @param symbolId
+         * @param count
+         * @return
+         */
+        public Builder append(int symbolId, long count)
+        {
+            if ( count <= 0 ) {
+                if ( count == 0 ) {
+                    return this;
+                }
+                throw new IllegalArgumentException( "Count must be >= 0" );
+            }
+            length = Math.addExact( length, count );
+            if ( runCount > 0 && (symbols[runCount - 1] & 0xff) == symbolId ) {
+                counts[runCount - 1] += count;
+                return this;
+            }
+            if ( runCount == symbols.length )
+            {
+                final int newSize = (int) Math.min( SymbolString.MAX_LENGTH, (long) runCount * 3 / 2 + 1 );
+                if ( newSize == runCount ) {
+                    throw new IllegalStateException( "String would exceed max. number of runs" );
+                }
+                symbols = Arrays.copyOf( symbols, newSize );
+                counts = Arrays.copyOf( counts, newSize );
+            }
+            symbols[runCount] = (byte) symbolId;
+            counts[runCount++] = count;
+            return this;
+        }
+
+        /**
+         * Creates the string.
+         *
+         * The builder must not be used any longer after this method has been called.
+         *
+         * @return
+         */
+        public RunLengthString build()
+        {
+            final RunLengthString result = new RunLengthString( alphabet, symbols, counts, runCount, length );
+            symbols = null;
+            counts = null;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package de.codesourcery;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A string of symbols stored off-heap in a (temporary) file, one byte per symbol.
+ *
+ * Files are read and written sequentially through a fixed-size direct buffer, so strings
+ * much larger than the Java heap can be processed using only a small, constant amount of memory.
+ * Each file keeps the buffer it was written through for reading, so a file isn't safe for use by multiple threads.
+ * Closing a symbol file deletes it.
+ *
+ * @see LSystemCalculator#calculateOffHeap(int, Path)
+ */
+public final class SymbolFile implements AutoCloseable
+{
+    /**
+     * Size of the direct buffer used for reading/writing a file.
+     */
+    static final int BUFFER_SIZE = 4*1024*1024;
+
+    private final Alphabet alphabet;
+    private final Path path;
+    private final long length;
+    // direct buffer of BUFFER_SIZE bytes used for reading
+    private final ByteBuffer buffer;
+
+    private SymbolFile(Alphabet alphabet, Path path, long length, ByteBuffer buffer)
+    {
+        this.alphabet = alphabet;
+        this.path = path;
+        this.length = length;
+        this.buffer = buffer;
+    }
+
+    static ByteBuffer allocateBuffer() {
+        return ByteBuffer.allocateDirect( BUFFER_SIZE );
+    }
+
+    /**
+     * Returns the buffer used for reading this file, which can be reused once the file is no longer needed.
+     *
+     * @return
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public Alphabet alphabet() {
+        return alphabet;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Passes all symbols in this file to a sink.
+     *
+     * @param sink
+     * @throws IOException
+     */
+    public void forEach(SymbolSink sink) throws IOException
+    {
+        buffer.clear();
+        try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) )
+        {
+            while ( channel.read( buffer ) != -1 )
+            {
+                buffer.flip();
+                while ( buffer.hasRemaining() ) {
+                    sink.accept( buffer.get() & 0xff );
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Rewrites all symbols of this file into a new file.
+     *
+     * @param successors successor symbol ids, indexed by predecessor symbol id
+     * @param directory directory to create the new file in
+     * @param writeBuffer direct buffer of {@link #BUFFER_SIZE} bytes to write through, becomes the new file's buffer
+     * @return
+     * @throws IOException
+     */
+    SymbolFile apply(byte[][] successors, Path directory, ByteBuffer writeBuffer) throws IOException
+    {
+        buffer.clear();
+        try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ;
+              Writer writer = new Writer( alphabet, directory, writeBuffer ) )
+        {
+            while ( channel.read( buffer ) != -1 )
+            {
+                buffer.flip();
+                while ( buffer.hasRemaining() )
+                {
+                    final byte[] successor = successors[ buffer.get() & 0xff ];
+                    if ( successor.length == 1 ) {
+                        writer.append( successor[0] );
+                    } else {
+                        writer.append( successor );
+                    }
+                }
+                buffer.clear();
+            }
+            return writer.finish();
+        }
+    }
+
+    /**
+     * Writes a string to a new file.
+     *
+     * @param input
+     * @param directory directory to create the file in
+     * @return
+     * @throws IOException
+     */
+    static SymbolFile of(SymbolString input, Path directory) throws IOException
+    {
+        try ( Writer writer = new Writer( input.alphabet(), directory, allocateBuffer() ) )
+        {
+            writer.append( input.toByteArray() );
+            return writer.finish();
+        }
+    }
+
+    /**
+     * Reads this file into memory.
+     *
+     * @return
+     * @throws IOException
+     */
+    public SymbolString toSymbolString() throws IOException
+    {
+        if ( length > SymbolString.MAX_LENGTH ) {
+            throw new IllegalStateException( "File holds " + length + " symbols, max. supported length is " + SymbolString.MAX_LENGTH );
+        }
+        final SymbolString.Builder builder = new SymbolString.Builder( alphabet, (int) length );
+        forEach( builder::append );
+        return builder.build();
+    }
+
+    /**
+     * Deletes this file.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        Files.deleteIfExists( path );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SymbolFile[ " + path + ", " + length + " symbols ]";
+    }
+
+    /**
+     * Writes symbols sequentially into a new temporary file.
+     */
+    static final class Writer implements AutoCloseable
+    {
+        private final Alphabet alphabet;
+        private final Path path;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long length;
+
+        Writer(Alphabet alphabet, Path directory, ByteBuffer buffer) throws IOException
+        {
+            this.alphabet = alphabet;
+            this.buffer = buffer.clear();
+            this.path = Files.createTempFile( directory, "lsystem", ".sym" );
+            this.channel = FileChannel.open( path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+        }
+
+        void append(byte symbol) throws IOException
+        {
+            if ( ! buffer.hasRemaining() ) {
+                flush();
+            }
+            buffer.put( symbol );
+            length++;
+        }
+
+        void append(byte[] symbols) throws IOException
+        {
+            int offset = 0;
+            while ( offset < symbols.length )
+            {
+                if ( ! buffer.hasRemaining() ) {
+                    flush();
+                }
+                final int count = Math.min( buffer.remaining(), symbols.length - offset );
+                buffer.put( symbols, offset, count );
+                offset += count;
+            }
+            length += symbols.length;
+        }
+
+        private void flush() throws IOException
+        {
+            buffer.flip();
+            while ( buffer.hasRemaining() ) {
+                channel.write( buffer );
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Finishes writing.
+         *
+         * @return the file that was written
+         * @throws IOException
+         */
+        SymbolFile finish() throws IOException
+        {
+            flush();
+            channel.close();
+            return new SymbolFile( alphabet, path, length, buffer );
+        }
+
+        /**
+         * Aborts writing and deletes the file.
+         */
+        @Override
+        public void close() throws IOException
+        {
+            if ( channel.isOpen() )
+            {
+                channel.close();
+                Files.deleteIfExists( path );
+            }
+        }
+    }
+}
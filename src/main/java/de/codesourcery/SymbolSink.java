@@ -0,0 +1,31 @@
+package de.codesourcery;
+
+/**
+ * Receives symbols one at a time, in order.
+ */
+@FunctionalInterface
+public interface SymbolSink
+{
+    /**
+     * Consumes a symbol.
+     *
+     * @param symbol symbol id
+     */
+    void accept(int symbol);
+
+    /**
+     * Consumes a run of identical symbols.
+     *
+     * Implementations may handle a run as a whole, for example by moving the turtle forward once
+     * instead of <code>count</code> times.
+     *
+     * @param symbol symbol id
+     * @param count number of repetitions
+     */
+    default void accept(int symbol, long count)
+    {
+        for ( long i = 0; i < count; i++ ) {
+            accept( symbol );
+        }
+    }
+}
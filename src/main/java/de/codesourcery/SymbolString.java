@@ -0,0 +1,246 @@
+package de.codesourcery;
+
+import java.util.Arrays;
+import java.util.List;
+import de.codesourcery.util.Fingerprint;
+
+/**
+ * A compact string of symbols.
+ *
+ * Symbols are stored by their (dense) {@link Alphabet.Symbol#id id} in a primitive <code>byte[]</code> array,
+ * requiring one byte per symbol instead of a (boxed) object reference.
+ *
+ * Instances are immutable, use a {@link Builder} to create them.
+ */
+public final class SymbolString
+{
+    /**
+     * Max. length of a symbol string (some VMs reserve header words in an array).
+     */
+    public static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final Alphabet alphabet;
+    private final byte[] data;
+    private final int length;
+
+    private SymbolString(Alphabet alphabet, byte[] data, int length)
+    {
+        this.alphabet = alphabet;
+        this.data = data;
+        this.length = length;
+    }
+
+    /**
+     * Wraps an array of symbol ids without copying it.
+     *
+     * @param alphabet
+     * @param data symbol ids, must not be modified afterwards
+     * @param length
+     * @return
+     */
+    static SymbolString wrap(Alphabet alphabet, byte[] data, int length) {
+        return new SymbolString( alphabet, data, length );
+    }
+
+    public static SymbolString of(Alphabet alphabet, Alphabet.Symbol... symbols) {
+        return of( alphabet, Arrays.asList( symbols ) );
+    }
+
+    public static SymbolString of(Alphabet alphabet, List<Alphabet.Symbol> symbols)
+    {
+        final Builder builder = new Builder( alphabet, symbols.size() );
+        symbols.forEach( builder::append );
+        return builder.build();
+    }
+
+    public Alphabet alphabet() {
+        return alphabet;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * Returns the id of the symbol at a given position.
+     *
+     * @param index
+     * @return
+     */
+    public int get(int index)
+    {
+        if ( index < 0 || index >= length ) {
+            throw new IndexOutOfBoundsException( "Index " + index + " out of bounds for length " + length );
+        }
+        return data[index] & 0xff;
+    }
+
+    public Alphabet.Symbol symbol(int index) {
+        return alphabet.get( get( index ) );
+    }
+
+    public void forEach(SymbolSink sink)
+    {
+        for ( int i = 0; i < length; i++ ) {
+            sink.accept( data[i] & 0xff );
+        }
+    }
+
+    /**
+     * Copies symbol ids into an array.
+     *
+     * @param srcOffset offset into this string
+     * @param destination
+     * @param destOffset
+     * @param count
+     */
+    public void copyTo(int srcOffset, byte[] destination, int destOffset, int count) {
+        System.arraycopy( data, srcOffset, destination, destOffset, count );
+    }
+
+    /**
+     * Returns the backing array without copying it, must not be modified.
+     *
+     * @return array holding the symbol ids, may be larger than {@link #length()}
+     */
+    byte[] array() {
+        return data;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf( data, length );
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if ( o instanceof SymbolString other ) {
+            return this.alphabet == other.alphabet && Arrays.equals( this.data, 0, length, other.data, 0, other.length );
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = 1;
+        for ( int i = 0; i < length; i++ ) {
+            result = 31 * result + data[i];
+        }
+        return result;
+    }
+
+    /**
+     * Adds the characters of this string's symbols to a fingerprint.
+     *
+     * @param fingerprint
+     */
+    public void fingerprint(Fingerprint fingerprint)
+    {
+        fingerprint.add( length );
+        for ( int i = 0; i < length; i++ ) {
+            final Alphabet.Symbol s = alphabet.get( data[i] & 0xff );
+            fingerprint.add( s.symbol ).add( s.isConstant() );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder buffer = new StringBuilder( length );
+        for ( int i = 0; i < length; i++ ) {
+            buffer.append( alphabet.get( data[i] & 0xff ).symbol );
+        }
+        return buffer.toString();
+    }
+
+    public static final class Builder
+    {
+        private final Alphabet alphabet;
+        private byte[] data;
+        private int length;
+
+        public Builder(Alphabet alphabet, int initialCapacity)
+        {
+            this.alphabet = alphabet;
+            this.data = new byte[ Math.max( 1, initialCapacity ) ];
+        }
+
+        public int length() {
+            return length;
+        }
+
+        private void assertCapacity(int requiredSize)
+        {
+            if ( requiredSize > data.length )
+            {
+                if ( requiredSize > MAX_LENGTH || requiredSize < 0 ) {
+                    throw new IllegalStateException( "Symbol string would exceed max. length of " + MAX_LENGTH );
+                }
+                final long newSize = Math.min( MAX_LENGTH, Math.max( requiredSize, (long) data.length * 3 / 2 ) );
+                data = Arrays.copyOf( data, (int) newSize );
+            }
+        }
+
+        public Builder append(Alphabet.Symbol symbol)
+        {
+            if ( symbol.alphabet() != alphabet ) {
+                throw new IllegalArgumentException( "Symbol " + symbol + " belongs to a different alphabet" );
+            }
+            return append( symbol.id );
+        }
+
+        public Builder append(int symbolId)
+        {
+            assertCapacity( length + 1 );
+            data[length++] = (byte) symbolId;
+            return this;
+        }
+
+        /**
+         * Appends symbol ids.
+         *
+         * @param ids
+         */
+        Builder append(byte[] ids)
+        {
+            final int count = ids.length;
+            if ( count == 1 ) {
+                return append( ids[0] );
+            }
+            assertCapacity( length + count );
+            System.arraycopy( ids, 0, data, length, count );
+            length += count;
+            return this;
+        }
+
+        public Builder append(SymbolString s)
+        {
+            if ( s.alphabet != alphabet ) {
+                throw new IllegalArgumentException( "Symbol string belongs to a different alphabet" );
+            }
+            assertCapacity( length + s.length );
+            System.arraycopy( s.data, 0, data, length, s.length );
+            length += s.length;
+            return this;
+        }
+
+        /**
+         * Creates the symbol string.
+         *
+         * The builder must not be used any longer after this method has been called.
+         *
+         * @return
+         */
+        public SymbolString build()
+        {
+            final SymbolString result = new SymbolString( alphabet, data, length );
+            data = null;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package de.codesourcery;
+
+import java.util.ArrayList;
+import java.util.List;
+import de.codesourcery.ui.ActionTable;
+import de.codesourcery.ui.HeadingTable;
+import de.codesourcery.ui.ParallelInterpreter;
+import de.codesourcery.ui.PrimitiveTurtle;
+import de.codesourcery.ui.Turtle;
+import de.codesourcery.util.Fingerprint;
+
+/**
+ * A renderer driven by a table that maps each symbol to a sequence of primitive turtle actions.
+ *
+ * The actions get compiled into an {@link ActionTable}, so rendering a symbol is an array lookup plus a switch over
+ * a few primitive opcodes instead of a chain of {@link Alphabet.Symbol#matches(int)} calls. Symbols mapped to more than one action (composites) run their actions in order.
+ *
+ * Rendering a symbol that has not been mapped fails with an {@link IllegalArgumentException}.
+ */
+public final class TableRenderer implements LSystemRenderer
+{
+    private final Alphabet alphabet;
+    private final ActionTable actions;
+
+    /**
+     * A primitive turtle action.
+     */
+    public static final class Action
+    {
+        private final byte opcode;
+        private final float operand;
+
+        private Action(byte opcode, float operand)
+        {
+            this.opcode = opcode;
+            this.operand = operand;
+        }
+
+        public static Action forward(float len) {
+            return new Action( ActionTable.FORWARD, len );
+        }
+
+        public static Action turnLeft(float angleInDeg) {
+            return new Action( ActionTable.TURN_LEFT, angleInDeg );
+        }
+
+        public static Action turnRight(float angleInDeg) {
+            return new Action( ActionTable.TURN_RIGHT, angleInDeg );
+        }
+
+        /**
+         * Saves position, heading and pen state.
+         *
+         * @return
+         */
+        public static Action push() {
+            return new Action( ActionTable.PUSH, 0 );
+        }
+
+        /**
+         * Restores the most recently saved position, heading and pen state.
+         *
+         * @return
+         */
+        public static Action pop() {
+            return new Action( ActionTable.POP, 0 );
+        }
+    }
+
+    private TableRenderer(Alphabet alphabet, List<List<Action>> actionsBySymbol)
+    {
+        this.alphabet = alphabet;
+        final byte[][] opcodes = new byte[ actionsBySymbol.size() ][];
+        final float[][] operands = new float[ actionsBySymbol.size() ][];
+        for ( int id = 0; id < opcodes.length; id++ )
+        {
+            final List<Action> list = actionsBySymbol.get( id );
+            if ( list != null )
+            {
+                opcodes[id] = new byte[ list.size() ];
+                operands[id] = new float[ list.size() ];
+                for ( int i = 0; i < list.size(); i++ ) {
+                    opcodes[id][i] = list.get( i ).opcode;
+                    operands[id][i] = list.get( i ).operand;
+                }
+            }
+        }
+        this.actions = new ActionTable( opcodes, operands );
+    }
+
+    public ActionTable actions() {
+        return actions;
+    }
+
+    /**
+     * Adds the actions of all symbols to a fingerprint.
+     *
+     * @param fingerprint
+     */
+    public void fingerprint(Fingerprint fingerprint)
+    {
+        fingerprint.add( actions.symbolCount() );
+        for ( int id = 0; id < actions.symbolCount(); id++ )
+        {
+            fingerprint.add( alphabet.get( id ).symbol ).add( actions.isDefined( id ) );
+            actions.fingerprint( id, fingerprint );
+        }
+    }
+
+    @Override
+    public SymbolSink createSink(LSystem system, Turtle turtle) {
+        return createSink( turtle );
+    }
+
+    /**
+     * Returns a sink that translates each symbol it receives into turtle commands.
+     *
+     * If all turning angles are multiples of <code>360/N</code> degrees, the turtle gets asked to use
+     * discrete headings (see {@link Turtle#headings(HeadingTable)}).
+     *
+     * @param turtle
+     * @return
+     */
+    public SymbolSink createSink(Turtle turtle)
+    {
+        turtle.penDown();
+        if ( actions.headings() != null ) {
+            turtle.headings( actions.headings() );
+        }
+        return new SymbolSink()
+        {
+            @Override
+            public void accept(int symbol, long count)
+            {
+                final float len = actions.forwardOnly( symbol );
+                if ( ! Float.isNaN( len ) ) {
+                    // a run of forward moves is a single, longer line
+                    turtle.forward( len * count );
+                } else if ( ! actions.isNoOp( symbol ) ) {
+                    SymbolSink.super.accept( symbol, count );
+                }
+            }
+
+            @Override
+            public void accept(int symbol)
+            {
+                if ( ! actions.isDefined( symbol ) ) {
+                    throw new IllegalArgumentException( "Unhandled symbol: " + alphabet.get( symbol ) );
+                }
+                actions.execute( symbol, turtle );
+            }
+        };
+    }
+
+    /**
+     * Renders a string into a {@link PrimitiveTurtle}.
+     *
+     * In parallel mode, large strings get interpreted by a {@link ParallelInterpreter} if the turtle uses discrete headings,
+     * yielding exactly the same lines as rendering sequentially.
+     *
+     * @param data
+     * @param turtle
+     * @param parallel
+     */
+    public void render(SymbolString data, PrimitiveTurtle turtle, boolean parallel)
+    {
+        final SymbolSink sink = createSink( turtle );
+        if ( parallel && ParallelInterpreter.supports( data.length(), actions, turtle ) ) {
+            new ParallelInterpreter( actions ).run( data.array(), data.length(), turtle );
+        } else {
+            data.forEach( sink );
+        }
+    }
+
+    public static final class Builder
+    {
+        private final Alphabet alphabet;
+        private final List<List<Action>> actionsBySymbol = new ArrayList<>();
+
+        public Builder(Alphabet alphabet) {
+            this.alphabet = alphabet;
+        }
+
+        /**
+         * Maps a symbol to a sequence of actions, replacing any previous mapping.
+         *
+         * @param symbol
+         * @param actions actions to perform in order, none to ignore the symbol
+         * @return
+         */
+        public Builder map(Alphabet.Symbol symbol, Action... actions)
+        {
+            if ( symbol.alphabet() != alphabet ) {
+                throw new IllegalArgumentException( "Symbol " + symbol + " belongs to a different alphabet" );
+            }
+            while ( actionsBySymbol.size() <= symbol.id ) {
+                actionsBySymbol.add( null );
+            }
+            actionsBySymbol.set( symbol.id, List.of( actions ) );
+            return this;
+        }
+
+        public Builder forward(Alphabet.Symbol symbol, float len) {
+            return map( symbol, Action.forward( len ) );
+        }
+
+        public Builder turnLeft(Alphabet.Symbol symbol, float angleInDeg) {
+            return map( symbol, Action.turnLeft( angleInDeg ) );
+        }
+
+        public Builder turnRight(Alphabet.Symbol symbol, float angleInDeg) {
+            return map( symbol, Action.turnRight( angleInDeg ) );
+        }
+
+        public Builder push(Alphabet.Symbol symbol) {
+            return map( symbol, Action.push() );
+        }
+
+        public Builder pop(Alphabet.Symbol symbol) {
+            return map( symbol, Action.pop() );
+        }
+
+        public Builder ignore(Alphabet.Symbol symbol) {
+            return map( symbol );
+        }
+
+        public TableRenderer build()
+        {
+            final List<List<Action>> table = new ArrayList<>( actionsBySymbol );
+            while ( table.size() < alphabet.size() ) {
+                table.add( null );
+            }
+            return new TableRenderer( alphabet, table );
+        }
+    }
+}
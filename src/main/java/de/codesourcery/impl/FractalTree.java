@@ -1,80 +1,69 @@
 package de.codesourcery.impl;
 
 import java.util.List;
-import java.util.Stack;
 import de.codesourcery.Alphabet;
 import de.codesourcery.LSystem;
 import de.codesourcery.LSystemCalculator;
 import de.codesourcery.LSystemRenderer;
 import de.codesourcery.ProductionRule;
 import de.codesourcery.ProductionRules;
-import de.codesourcery.ui.TurtleState;
+import de.codesourcery.SymbolString;
+import de.codesourcery.TableRenderer;
+import de.codesourcery.TableRenderer.Action;
 
 public class FractalTree implements LSystem
 {
-    private final Alphabet.Symbol zero = Alphabet.Symbol.symbol( '0' );
-    private final Alphabet.Symbol one = Alphabet.Symbol.symbol( '1' );
-    private final Alphabet.Symbol bracketOpen = Alphabet.Symbol.constant( '[' );
-    private final Alphabet.Symbol bracketClose = Alphabet.Symbol.constant( ']' );
+    private final Alphabet alphabet = new Alphabet();
 
-    @Override
-    public List<Alphabet.Symbol> create(int iterationCount)
-    {
-        /*
+    private final Alphabet.Symbol zero = alphabet.symbol( '0' );
+    private final Alphabet.Symbol one = alphabet.symbol( '1' );
+    private final Alphabet.Symbol bracketOpen = alphabet.constant( '[' );
+    private final Alphabet.Symbol bracketClose = alphabet.constant( ']' );
+
+    /*
     variables : 0, 1
     constants: “[”, “]”
     axiom  : 0
     rules  : (1 → 11), (0 → 1[0]0)
-         */
-        final List<Alphabet.Symbol> initialState = List.of( zero );
-        final ProductionRules rules = new ProductionRules();
+     */
+    private final SymbolString initialState = SymbolString.of( alphabet, zero );
+
+    private final ProductionRules rules = new ProductionRules();
+
+    {
         rules.add(
             new ProductionRule(  one, List.of( one, one ) ),
             new ProductionRule( zero, List.of( one, bracketOpen, zero, bracketClose, zero ) )
         );
-        return new LSystemCalculator( initialState, rules ).calculate( iterationCount );
+    }
+
+    @Override
+    public LSystemCalculator calculator()
+    {
+        return new LSystemCalculator( initialState, rules );
     }
 
     @Override
     public LSystemRenderer createRenderer()
     {
-        return (data, system, turtle) -> {
-            /*
+        /*
 0: draw a line segment ending in a leaf
 1: draw a line segment
 [: push position and angle, turn left 45 degrees
 ]: pop position and angle, turn right 45 degrees
-             */
-            final float lineLen = 1f;
-            turtle.penDown();
-
-            final Stack<TurtleState> stack = new Stack<>();
-
-            final float angle = 10;
-            final float angle2 = 20;
-            for ( int i = 0; i < data.size(); i++ )
-            {
-                final Alphabet.Symbol symbol = data.get( i );
-                if ( zero.matches( symbol ) ) {
-                    turtle.forward( lineLen );
-                    final TurtleState junction = turtle.state();
-                    turtle.turnLeft( angle2 ).forward( lineLen / 2 );
-                    turtle.recall( junction );
-                    turtle.turnRight( angle2 ).forward( lineLen / 2 );
-                } else if ( one.matches( symbol ) ) {
-                    turtle.forward( lineLen );
-                }
-                else if ( bracketOpen.matches( symbol ) ) {
-                    stack.push( turtle.state() );
-                    turtle.turnLeft( angle );
-                } else if ( bracketClose.matches( symbol ) ) {
-                    turtle.recall( stack.pop() );
-                    turtle.turnRight( angle );
-                } else {
-                    throw new UnsupportedOperationException( "Unknown symbol: " + symbol );
-                }
-            }
-        };
+         */
+        final float lineLen = 1f;
+        final float angle = 10;
+        final float angle2 = 20;
+        return new TableRenderer.Builder( alphabet )
+            .map( zero,
+                  Action.forward( lineLen ),
+                  Action.push(), Action.turnLeft( angle2 ), Action.forward( lineLen / 2 ), Action.pop(),
+                  Action.turnRight( angle2 ), Action.forward( lineLen / 2 ) )
+            .forward( one, lineLen )
+            .map( bracketOpen, Action.push(), Action.turnLeft( angle ) )
+            .map( bracketClose, Action.pop(), Action.turnRight( angle ) )
+            .build();
     }
 
     public static void main(String[] args)
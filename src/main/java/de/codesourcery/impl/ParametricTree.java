@@ -0,0 +1,79 @@
+package de.codesourcery.impl;
+
+import de.codesourcery.Alphabet;
+import de.codesourcery.ParametricLSystem;
+import de.codesourcery.ParametricRenderer;
+import de.codesourcery.ParametricRule;
+import de.codesourcery.ParametricRules;
+import de.codesourcery.ParametricSink;
+import de.codesourcery.ParametricString;
+
+public class ParametricTree implements ParametricLSystem
+{
+    private final Alphabet alphabet = new Alphabet();
+
+    private final Alphabet.Symbol A = alphabet.symbol( 'A' );
+    private final Alphabet.Symbol F = alphabet.symbol( 'F' );
+    private final Alphabet.Symbol plus = alphabet.constant( '+' );
+    private final Alphabet.Symbol minus = alphabet.constant( '-' );
+    private final Alphabet.Symbol bracketOpen = alphabet.constant( '[' );
+    private final Alphabet.Symbol bracketClose = alphabet.constant( ']' );
+
+    /*
+    variables : A(l,a) F(l)
+    constants : +(a) -(a) [ ]
+    axiom  : A(100,40)
+    rules  : A(l,a) : l >= 2 → F(l)[+(a)A(l*0.7,a*0.9)][-(a*0.8)A(l*0.6,a*1.1)]
+             F(l) → F(l*1.05)
+    */
+    private final ParametricString initialState = ParametricString.parse( alphabet, "A(100,40)" );
+
+    private final ParametricRules rules = new ParametricRules();
+
+    {
+        rules.add(
+            new ParametricRule( alphabet, "A(l,a)", "l >= 2", "F(l)[+(a)A(l*0.7,a*0.9)][-(a*0.8)A(l*0.6,a*1.1)]" ),
+            new ParametricRule( alphabet, "F(l)", "F(l*1.05)" )
+        );
+    }
+
+    @Override
+    public ParametricString axiom() {
+        return initialState;
+    }
+
+    @Override
+    public ParametricRules rules() {
+        return rules;
+    }
+
+    @Override
+    public ParametricRenderer createRenderer()
+    {
+        return (system, turtle) ->
+        {
+            // F(l) means "draw forward by l", +(a) means "turn left by a degrees", -(a) means "turn right by a degrees"
+            turtle.penDown();
+            return new ParametricSink()
+            {
+                @Override
+                public void accept(int symbol, float[] parameters, int parameterCount)
+                {
+                    if ( F.matches( symbol ) ) {
+                        turtle.forward( parameters[0] );
+                    } else if ( plus.matches( symbol ) ) {
+                        turtle.turnLeft( parameters[0] );
+                    } else if ( minus.matches( symbol ) ) {
+                        turtle.turnRight( parameters[0] );
+                    } else if ( bracketOpen.matches( symbol ) ) {
+                        turtle.push();
+                    } else if ( bracketClose.matches( symbol ) ) {
+                        turtle.pop();
+                    } else if ( ! A.matches( symbol ) ) {
+                        throw new IllegalArgumentException( "Unhandled symbol: " + alphabet.get( symbol ) );
+                    }
+                }
+            };
+        };
+    }
+}
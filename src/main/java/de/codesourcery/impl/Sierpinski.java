@@ -7,7 +7,8 @@ import de.codesourcery.LSystemCalculator;
 import de.codesourcery.LSystemRenderer;
 import de.codesourcery.ProductionRule;
 import de.codesourcery.ProductionRules;
-import de.codesourcery.ui.Turtle;
+import de.codesourcery.SymbolString;
+import de.codesourcery.TableRenderer;
 
 public class Sierpinski implements LSystem
 {
@@ -19,13 +20,15 @@ public class Sierpinski implements LSystem
     angle  : 120°
      */
 
-    private final Alphabet.Symbol F = Alphabet.Symbol.symbol( 'F' );
-    private final Alphabet.Symbol G = Alphabet.Symbol.symbol( 'G' );
+    private final Alphabet alphabet = new Alphabet();
 
-    private final Alphabet.Symbol plus = Alphabet.Symbol.constant( '+' );
-    private final Alphabet.Symbol minus = Alphabet.Symbol.constant( '-' );
+    private final Alphabet.Symbol F = alphabet.symbol( 'F' );
+    private final Alphabet.Symbol G = alphabet.symbol( 'G' );
 
-    private final List<Alphabet.Symbol> initial = List.of( F, minus, G, minus, G );
+    private final Alphabet.Symbol plus = alphabet.constant( '+' );
+    private final Alphabet.Symbol minus = alphabet.constant( '-' );
+
+    private final SymbolString initial = SymbolString.of( alphabet, F, minus, G, minus, G );
 
     private final ProductionRules rules = new ProductionRules();
 
@@ -35,39 +38,24 @@ public class Sierpinski implements LSystem
             new ProductionRule( G, List.of( G, G ) )
         );
     }
+
     @Override
-    public List<Alphabet.Symbol> create(int iterationCount)
+    public LSystemCalculator calculator()
     {
-        return new LSystemCalculator( initial, rules ).calculate( iterationCount );
+        return new LSystemCalculator( initial, rules );
     }
 
     @Override
     public LSystemRenderer createRenderer()
     {
-        return new LSystemRenderer()
-        {
-            @Override
-            public void render(List<Alphabet.Symbol> data, LSystem system, Turtle turtle)
-            {
-                // Here, F means "draw forward", G means "draw forward", + means "turn left by angle", and − means "turn right by angle".
-                turtle.penDown();
-                final float angle = 120;
-                float len = 2;
-                for ( final Alphabet.Symbol symbol : data )
-                {
-                    if ( symbol.matches( F ) ) {
-                        turtle.forward( len );
-                    } else if ( symbol.matches( G ) ) {
-                        turtle.forward( len );
-                    } else if ( symbol.matches( plus ) ) {
-                        turtle.turnLeft( angle );
-                    } else if ( symbol.matches( minus ) ) {
-                        turtle.turnRight( angle );
-                    } else {
-                        throw new RuntimeException( "Unhandled symbol: " + symbol );
-                    }
-                }
-            }
-        };
+        // Here, F means "draw forward", G means "draw forward", + means "turn left by angle", and − means "turn right by angle".
+        final float angle = 120;
+        final float len = 2;
+        return new TableRenderer.Builder( alphabet )
+            .forward( F, len )
+            .forward( G, len )
+            .turnLeft( plus, angle )
+            .turnRight( minus, angle )
+            .build();
     }
 }
@@ -0,0 +1,151 @@
+package de.codesourcery.ui;
+
+import java.util.Arrays;
+import de.codesourcery.util.Fingerprint;
+
+/**
+ * Maps symbol ids to sequences of primitive turtle actions.
+ *
+ * The actions of all symbols are stored in flat opcode/operand arrays, indexed through a per-symbol offset table,
+ * so executing a symbol is an array lookup plus a switch over a few primitive opcodes.
+ */
+public final class ActionTable
+{
+    public static final byte FORWARD = 1;
+    public static final byte TURN_LEFT = 2;
+    public static final byte TURN_RIGHT = 3;
+    public static final byte PUSH = 4;
+    public static final byte POP = 5;
+
+    // actions of symbol s are at indices first[s] (inclusive) to first[s+1] (exclusive)
+    final int[] first;
+    final byte[] opcodes;
+    final float[] operands;
+    private final boolean[] isDefined;
+    // line length if a symbol consists of a single forward move, NaN otherwise
+    private final float[] forwardOnly;
+    // null if turning angles are not commensurate
+    private final HeadingTable headings;
+
+    /**
+     * @param opcodes opcodes indexed by symbol id, <code>null</code> for symbols that have no actions assigned
+     * @param operands operand of each opcode
+     */
+    public ActionTable(byte[][] opcodes, float[][] operands)
+    {
+        final int symbolCount = opcodes.length;
+        this.first = new int[ symbolCount + 1 ];
+        this.isDefined = new boolean[ symbolCount ];
+        this.forwardOnly = new float[ symbolCount ];
+        final int total = Arrays.stream( opcodes ).mapToInt( a -> a == null ? 0 : a.length ).sum();
+        this.opcodes = new byte[ total ];
+        this.operands = new float[ total ];
+
+        int ptr = 0;
+        for ( int id = 0; id < symbolCount; id++ )
+        {
+            first[id] = ptr;
+            forwardOnly[id] = Float.NaN;
+            if ( opcodes[id] == null ) {
+                continue;
+            }
+            isDefined[id] = true;
+            for ( int i = 0; i < opcodes[id].length; i++ )
+            {
+                if ( opcodes[id][i] < FORWARD || opcodes[id][i] > POP ) {
+                    throw new IllegalArgumentException( "Unknown opcode " + opcodes[id][i] );
+                }
+                this.opcodes[ptr] = opcodes[id][i];
+                this.operands[ptr++] = operands[id][i];
+            }
+            if ( opcodes[id].length == 1 && opcodes[id][0] == FORWARD ) {
+                forwardOnly[id] = operands[id][0];
+            }
+        }
+        first[symbolCount] = ptr;
+
+        final float[] angles = new float[ total ];
+        int angleCount = 0;
+        for ( int pc = 0; pc < total; pc++ )
+        {
+            if ( this.opcodes[pc] == TURN_LEFT || this.opcodes[pc] == TURN_RIGHT ) {
+                angles[angleCount++] = this.operands[pc];
+            }
+        }
+        this.headings = HeadingTable.forAngles( Arrays.copyOf( angles, angleCount ) );
+    }
+
+    public int symbolCount() {
+        return isDefined.length;
+    }
+
+    public boolean isDefined(int symbol) {
+        return isDefined[symbol];
+    }
+
+    /**
+     * Returns whether a symbol has been assigned an empty sequence of actions.
+     *
+     * @param symbol
+     * @return
+     */
+    public boolean isNoOp(int symbol) {
+        return isDefined[symbol] && first[symbol] == first[symbol + 1];
+    }
+
+    /**
+     * Returns the line length if a symbol consists of a single forward move.
+     *
+     * @param symbol
+     * @return length or NaN
+     */
+    public float forwardOnly(int symbol) {
+        return forwardOnly[symbol];
+    }
+
+    /**
+     * Returns the table of discrete headings all turning angles are multiples of.
+     *
+     * @return table or <code>null</code> if the turning angles are not commensurate
+     */
+    public HeadingTable headings() {
+        return headings;
+    }
+
+    /**
+     * Adds the actions of a symbol to a fingerprint.
+     *
+     * @param symbol
+     * @param fingerprint
+     */
+    public void fingerprint(int symbol, Fingerprint fingerprint)
+    {
+        fingerprint.add( first[symbol + 1] - first[symbol] );
+        for ( int pc = first[symbol], end = first[symbol + 1]; pc < end; pc++ ) {
+            fingerprint.add( opcodes[pc] ).add( operands[pc] );
+        }
+    }
+
+    /**
+     * Executes the actions of a symbol.
+     *
+     * @param symbol
+     * @param turtle
+     */
+    public void execute(int symbol, Turtle turtle)
+    {
+        for ( int pc = first[symbol], end = first[symbol + 1]; pc < end; pc++ )
+        {
+            switch( opcodes[pc] )
+            {
+                case FORWARD:    turtle.forward( operands[pc] ); break;
+                case TURN_LEFT:  turtle.turnLeft( operands[pc] ); break;
+                case TURN_RIGHT: turtle.turnRight( operands[pc] ); break;
+                case PUSH:       turtle.push(); break;
+                case POP:        turtle.pop(); break;
+                default:
+                    throw new IllegalStateException( "Unknown opcode " + opcodes[pc] );
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package de.codesourcery.ui;
+
+import java.awt.geom.AffineTransform;
+
+/**
+ * Axis-aligned bounding box of the lines drawn by a turtle.
+ */
+public final class Bounds
+{
+    public float xMin, yMin;
+    public float xMax, yMax;
+
+    public void update(float x, float y) {
+
+        xMin = Math.min( xMin, x );
+        xMax = Math.max( xMax, x );
+
+        yMin = Math.min( yMin, y );
+        yMax = Math.max( yMax, y );
+    }
+
+    /**
+     * Returns an affine transform that centers this bounding box
+     * around the (0,0) coordinate system origin.
+     *
+     * @return
+     */
+    public AffineTransform originTransform() {
+        float dx = xMin + width() /2;
+        float dy = yMin + height() / 2;
+        final float tx = -dx;
+        final float ty = -dy;
+        System.out.println( this+" has origin transform ("+tx+", "+ty+")");
+        return AffineTransform.getTranslateInstance( tx, ty );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Bounds[ ("+xMin+","+yMin+") -> ("+xMax+", "+yMax+") ] = ( "+width()+" x "+height()+" )";
+    }
+
+    public float width() {
+        return xMax - xMin;
+    }
+
+    public float height() {
+        return yMax - yMin;
+    }
+
+    public void reset() {
+        xMin = xMax = yMin = yMax = 0;
+    }
+
+    public void update(float x1, float y1, float x2, float y2) {
+        update( x1, y1 );
+        update( x2, y2 );
+    }
+}
@@ -0,0 +1,309 @@
+package de.codesourcery.ui;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+/**
+ * Assembles full-quality frames from {@link TileCache tiles} on a background thread.
+ *
+ * Each view change posts a frame request. Only the most recent request matters: a request replaced before the
+ * renderer got to it is dropped, a frame still waiting for tiles when a newer request arrives is cancelled.
+ * The last completed frame stays available, so the UI can show it shifted or scaled until the frame for the
+ * current view is ready.
+ *
+ * @param <S> scene the tiles show, compared using equals()
+ */
+public final class FrameRenderer<S>
+{
+    // max. time to wait for a tile before checking for cancellation again
+    private static final long TILE_WAIT_MILLIS = 50;
+
+    /**
+     * A completed frame.
+     */
+    public static final class Frame
+    {
+        public final BufferedImage image;
+        // transform from model space to the image's pixels
+        public final AffineTransform transform;
+        // time from request to completion
+        public final long latencyNanos;
+
+        Frame(BufferedImage image, AffineTransform transform, long latencyNanos)
+        {
+            this.image = image;
+            this.transform = transform;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+
+    private static final class Request<S>
+    {
+        final S scene;
+        final float scale;
+        final AffineTransform origin;
+        final int offsetX, offsetY;
+        final int width, height;
+        final long generation;
+        final long time = System.nanoTime();
+
+        Request(S scene, float scale, AffineTransform origin, int offsetX, int offsetY, int width, int height, long generation)
+        {
+            this.scene = scene;
+            this.scale = scale;
+            this.origin = origin;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.width = width;
+            this.height = height;
+            this.generation = generation;
+        }
+
+        boolean isSameView(Request<S> other)
+        {
+            return other != null && other.scene.equals( scene ) && other.scale == scale && other.origin.equals( origin ) && other.offsetX == offsetX &&
+                   other.offsetY == offsetY && other.width == width && other.height == height && other.generation == generation;
+        }
+
+        AffineTransform transform()
+        {
+            final AffineTransform result = AffineTransform.getTranslateInstance( offsetX, offsetY );
+            result.concatenate( origin );
+            return result;
+        }
+    }
+
+    private final TileCache<S> tiles;
+    private final Runnable onFrame;
+
+    private Request<S> pending;
+    private Request<S> current;
+    private Request<S> completed;
+    private Frame lastFrame;
+    // volatile so that the renderer thread can check for invalidation before requesting each tile
+    private volatile long generation;
+
+    private long framesCompleted;
+    private long framesDropped;
+    private long framesCancelled;
+    private long totalLatencyNanos;
+
+    /**
+     * @param tiles
+     * @param onFrame called from the renderer thread whenever a frame has been completed
+     */
+    public FrameRenderer(TileCache<S> tiles, Runnable onFrame)
+    {
+        this.tiles = tiles;
+        this.onFrame = onFrame;
+        final Thread thread = new Thread( this::run, "frame-renderer" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * Requests a frame, cancelling any frame that is in progress.
+     *
+     * Requests for the view that is already being rendered or has been completed last are ignored.
+     *
+     * @param scene scene to render, must not be released before {@link #awaitInvalidated()} returned after invalidating it
+     * @param scale ratio of pixels to model space distances
+     * @param origin transform from model space to the pixel space tiles are aligned to
+     * @param offsetX position of the pixel space origin on screen
+     * @param offsetY position of the pixel space origin on screen
+     * @param width
+     * @param height
+     */
+    public synchronized void request(S scene, float scale, AffineTransform origin, int offsetX, int offsetY, int width, int height)
+    {
+        final Request<S> request = new Request<>( scene, scale, new AffineTransform( origin ), offsetX, offsetY, width, height, generation );
+        if ( request.isSameView( pending ) || (pending == null && (request.isSameView( current ) || request.isSameView( completed ))) ) {
+            return;
+        }
+        if ( pending != null ) {
+            framesDropped++;
+        }
+        pending = request;
+        notifyAll();
+    }
+
+    /**
+     * Wakes up the renderer thread after a tile has been rendered.
+     */
+    public synchronized void tileRendered() {
+        notifyAll();
+    }
+
+    /**
+     * Discards the last frame and cancels the frame in progress, for example because the scene has changed.
+     */
+    public synchronized void invalidate()
+    {
+        generation++;
+        pending = null;
+        completed = null;
+        lastFrame = null;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the renderer thread has stopped working on frames cancelled by {@link #invalidate()}.
+     *
+     * Once this method returns, no more tiles get requested for the scenes of these frames.
+     */
+    public synchronized void awaitInvalidated()
+    {
+        while ( current != null && current.generation != generation )
+        {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the last completed frame.
+     *
+     * @return frame or <code>null</code>
+     */
+    public synchronized Frame lastFrame() {
+        return lastFrame;
+    }
+
+    private void run()
+    {
+        while ( true )
+        {
+            final Request<S> request;
+            synchronized( this )
+            {
+                while ( pending == null )
+                {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                request = pending;
+                pending = null;
+                current = request;
+            }
+            final Frame frame = render( request );
+            synchronized( this )
+            {
+                current = null;
+                notifyAll();
+                if ( frame == null || request.generation != generation ) {
+                    framesCancelled++;
+                    continue;
+                }
+                completed = request;
+                lastFrame = frame;
+                framesCompleted++;
+                totalLatencyNanos += frame.latencyNanos;
+            }
+            onFrame.run();
+        }
+    }
+
+    /*
+     * Composites all tiles of a frame, returns null if cancelled.
+     */
+    private Frame render(Request<S> request)
+    {
+        final int firstTileX = Math.floorDiv( -request.offsetX, TileCache.TILE_SIZE );
+        final int firstTileY = Math.floorDiv( -request.offsetY, TileCache.TILE_SIZE );
+        final int lastTileX = Math.floorDiv( request.width - 1 - request.offsetX, TileCache.TILE_SIZE );
+        final int lastTileY = Math.floorDiv( request.height - 1 - request.offsetY, TileCache.TILE_SIZE );
+        final int tilesX = lastTileX - firstTileX + 1;
+        final int tilesY = lastTileY - firstTileY + 1;
+        final boolean[] drawn = new boolean[ tilesX * tilesY ];
+
+        final BufferedImage image = new BufferedImage( Math.max( 1, request.width ), Math.max( 1, request.height ), BufferedImage.TYPE_INT_ARGB );
+        final Graphics2D graphics = image.createGraphics();
+        try
+        {
+            tiles.nextFrame();
+            int missing = drawn.length;
+            while ( missing > 0 )
+            {
+                for ( int i = 0; i < drawn.length; i++ )
+                {
+                    if ( request.generation != generation ) {
+                        return null;
+                    }
+                    if ( ! drawn[i] )
+                    {
+                        final int tx = firstTileX + i % tilesX;
+                        final int ty = firstTileY + i / tilesX;
+                        final BufferedImage tile = tiles.get( request.scene, request.scale, request.origin, tx, ty );
+                        if ( tile != null ) {
+                            graphics.drawImage( tile, request.offsetX + tx * TileCache.TILE_SIZE, request.offsetY + ty * TileCache.TILE_SIZE, null );
+                            drawn[i] = true;
+                            missing--;
+                        }
+                    }
+                }
+                synchronized( this )
+                {
+                    if ( pending != null || request.generation != generation ) {
+                        return null;
+                    }
+                    if ( missing > 0 )
+                    {
+                        try {
+                            wait( TILE_WAIT_MILLIS );
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return new Frame( image, request.transform(), System.nanoTime() - request.time );
+    }
+
+    public synchronized long framesCompleted() {
+        return framesCompleted;
+    }
+
+    /**
+     * Returns the number of requests that got replaced before rendering started.
+     *
+     * @return
+     */
+    public synchronized long framesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * Returns the number of frames that got cancelled while being rendered.
+     *
+     * @return
+     */
+    public synchronized long framesCancelled() {
+        return framesCancelled;
+    }
+
+    /**
+     * Returns the average time from requesting a frame to its completion.
+     *
+     * @return average latency in nanoseconds, 0 if no frame has been completed yet
+     */
+    public synchronized long averageLatencyNanos() {
+        return framesCompleted == 0 ? 0 : totalLatencyNanos / framesCompleted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameRenderer[ " + framesCompleted + " completed, " + framesDropped + " dropped, " + framesCancelled + " cancelled, avg. latency " + averageLatencyNanos() / 1_000_000 + " ms ]";
+    }
+}
@@ -0,0 +1,163 @@
+package de.codesourcery.ui;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import de.codesourcery.util.MyFloatBuffer;
+
+/**
+ * Binary file format for rendered lines.
+ *
+ * A file consists of a fixed-size header followed by the coordinates of all lines as raw little-endian floats,
+ * in the same layout {@link LineBuffer} uses in memory (<code>x1,y1,x2,y2</code> per line or, for polyline buffers, <code>x,y</code> per vertex
+ * with NaNs separating runs). Loading a file maps it into memory
+ * and wraps the mapping as a line buffer without copying anything, so even huge scenes open in milliseconds.
+ *
+ * Header (little-endian):
+ * <pre>
+ * int   magic ('LSGF')
+ * int   version
+ * int   flags (bit 0: polylines)
+ * long  line count
+ * long  float count
+ * float xMin, yMin, xMax, yMax
+ * long  fingerprint of whatever produced the lines (see {@link de.codesourcery.util.Fingerprint})
+ * </pre>
+ */
+public final class GeometryFile
+{
+    public static final int MAGIC = 0x4647534c;
+    public static final int VERSION = 2;
+
+    static final int FLAG_POLYLINES = 1;
+
+    static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4*4 + 8;
+
+    private final LineBuffer lines;
+    private final Bounds bounds;
+    private final long fingerprint;
+
+    private GeometryFile(LineBuffer lines, Bounds bounds, long fingerprint)
+    {
+        this.lines = lines;
+        this.bounds = bounds;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Returns the lines, backed by the memory-mapped file.
+     *
+     * Modifying them never changes the file. If the file is not writable, the lines are read-only (see {@link LineBuffer#isReadOnly()}).
+     * The file gets unmapped once the lines are no longer referenced.
+     *
+     * @return
+     */
+    public LineBuffer lines() {
+        return lines;
+    }
+
+    public Bounds bounds() {
+        return bounds;
+    }
+
+    public long fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Writes lines to a file, replacing any existing file.
+     *
+     * @param path
+     * @param lines
+     * @param bounds
+     * @param fingerprint
+     * @throws IOException
+     */
+    public static void write(Path path, LineBuffer lines, Bounds bounds, long fingerprint) throws IOException
+    {
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        header.putInt( MAGIC ).putInt( VERSION ).putInt( lines.isPolylineMode() ? FLAG_POLYLINES : 0 );
+        header.putLong( lines.lineCount() ).putLong( lines.floatCount() );
+        header.putFloat( bounds.xMin ).putFloat( bounds.yMin ).putFloat( bounds.xMax ).putFloat( bounds.yMax );
+        header.putLong( fingerprint );
+        header.flip();
+        try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) )
+        {
+            while ( header.hasRemaining() ) {
+                channel.write( header );
+            }
+            lines.writeTo( channel );
+        }
+    }
+
+    /**
+     * Maps a file into memory.
+     *
+     * @param path
+     * @return
+     * @throws IOException if the file is not a geometry file or is truncated
+     */
+    public static GeometryFile read(Path path) throws IOException
+    {
+        if ( Files.isWritable( path ) )
+        {
+            // private mappings need a writable channel, the file itself is never written to
+            try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+                return read( path, channel, FileChannel.MapMode.PRIVATE );
+            } catch (AccessDeniedException e) {
+                // for example on a read-only file system
+            }
+        }
+        try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ) {
+            return read( path, channel, FileChannel.MapMode.READ_ONLY );
+        }
+    }
+
+    private static GeometryFile read(Path path, FileChannel channel, FileChannel.MapMode mode) throws IOException
+    {
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        while ( header.hasRemaining() )
+        {
+            if ( channel.read( header ) == -1 ) {
+                throw new IOException( "File " + path + " is too short to be a geometry file" );
+            }
+        }
+        header.flip();
+        if ( header.getInt() != MAGIC ) {
+            throw new IOException( "File " + path + " is no geometry file" );
+        }
+        final int version = header.getInt();
+        if ( version != VERSION ) {
+            throw new IOException( "File " + path + " has unsupported version " + version );
+        }
+        final int flags = header.getInt();
+        final long lineCount = header.getLong();
+        final long floatCount = header.getLong();
+        final Bounds bounds = new Bounds();
+        bounds.xMin = header.getFloat();
+        bounds.yMin = header.getFloat();
+        bounds.xMax = header.getFloat();
+        bounds.yMax = header.getFloat();
+        final long fingerprint = header.getLong();
+
+        final boolean polylines = (flags & FLAG_POLYLINES) != 0;
+        final long dataSize = floatCount * 4;
+        if ( lineCount < 0 || lineCount > Integer.MAX_VALUE || floatCount < 0 || dataSize > Integer.MAX_VALUE ||
+             (! polylines && floatCount != lineCount * 4) )
+        {
+            throw new IOException( "File " + path + " has unsupported line count " + lineCount + " / float count " + floatCount );
+        }
+        if ( channel.size() < HEADER_SIZE + dataSize ) {
+            throw new IOException( "File " + path + " is truncated" );
+        }
+        // private (copy-on-write) mappings allow modifying the lines without changing the file
+        final MappedByteBuffer data = channel.map( mode, HEADER_SIZE, dataSize );
+        return new GeometryFile( new LineBuffer( MyFloatBuffer.wrap( data ), polylines, (int) lineCount ), bounds, fingerprint );
+    }
+}
@@ -0,0 +1,205 @@
+package de.codesourcery.ui;
+
+/**
+ * Uniform grid over the lines of a {@link LineBuffer} in model space.
+ *
+ * Each line gets registered with all cells its bounding box overlaps. The grid is sized so that cells hold
+ * a few lines on average, so finding the lines inside a rectangle costs time proportional to the number of
+ * cells and lines near the rectangle rather than to the total number of lines.
+ * Cell contents are stored as one array of line indices plus an offset per cell.
+ */
+public final class GridIndex
+{
+    /**
+     * Average number of lines per cell the grid gets sized for.
+     */
+    static final int LINES_PER_CELL = 8;
+
+    /**
+     * Max. number of cells along either axis.
+     */
+    static final int MAX_CELLS_PER_AXIS = 4096;
+
+    private final LineBuffer lines;
+    private final int lineCount;
+
+    private final float originX, originY;
+    private final float cellSize;
+    private final int cellsX, cellsY;
+
+    // lines of cell c are at cellStart[c] (inclusive) to cellStart[c+1] (exclusive)
+    private final int[] cellStart;
+    private final int[] lineIndices;
+
+    private GridIndex(LineBuffer lines, Bounds bounds)
+    {
+        this.lines = lines;
+        this.lineCount = lines.lineCount();
+        this.originX = bounds.xMin;
+        this.originY = bounds.yMin;
+
+        final float width = Math.max( bounds.width(), Float.MIN_NORMAL );
+        final float height = Math.max( bounds.height(), Float.MIN_NORMAL );
+        final double targetCells = Math.max( 1, lineCount / (double) LINES_PER_CELL );
+        float size = (float) Math.sqrt( width * (double) height / targetCells );
+        size = Math.max( size, Math.max( width, height ) / MAX_CELLS_PER_AXIS );
+        this.cellSize = size;
+        this.cellsX = Math.min( MAX_CELLS_PER_AXIS, (int) (width / size) + 1 );
+        this.cellsY = Math.min( MAX_CELLS_PER_AXIS, (int) (height / size) + 1 );
+
+        // count entries per cell, then turn counts into offsets and fill
+        final int[] start = new int[ cellsX * cellsY + 1 ];
+        lines.visit( (x1, y1, x2, y2) ->
+        {
+            final int cx0 = cellX( Math.min( x1, x2 ) ), cx1 = cellX( Math.max( x1, x2 ) );
+            final int cy0 = cellY( Math.min( y1, y2 ) ), cy1 = cellY( Math.max( y1, y2 ) );
+            for ( int cy = cy0; cy <= cy1; cy++ )
+            {
+                for ( int cx = cx0; cx <= cx1; cx++ ) {
+                    start[ cy * cellsX + cx + 1 ]++;
+                }
+            }
+        } );
+        for ( int i = 1; i < start.length; i++ ) {
+            start[i] += start[i - 1];
+        }
+        this.cellStart = start;
+        this.lineIndices = new int[ start[ start.length - 1 ] ];
+
+        final int[] fill = new int[ cellsX * cellsY ];
+        System.arraycopy( start, 0, fill, 0, fill.length );
+        lines.visitIndexed( (line, x1, y1, x2, y2) ->
+        {
+            final int cx0 = cellX( Math.min( x1, x2 ) ), cx1 = cellX( Math.max( x1, x2 ) );
+            final int cy0 = cellY( Math.min( y1, y2 ) ), cy1 = cellY( Math.max( y1, y2 ) );
+            for ( int cy = cy0; cy <= cy1; cy++ )
+            {
+                for ( int cx = cx0; cx <= cx1; cx++ ) {
+                    lineIndices[ fill[ cy * cellsX + cx ]++ ] = line;
+                }
+            }
+        } );
+    }
+
+    /**
+     * Builds an index over all lines currently in a buffer.
+     *
+     * @param lines
+     * @param bounds bounding box of all lines
+     * @return
+     */
+    public static GridIndex build(LineBuffer lines, Bounds bounds) {
+        return new GridIndex( lines, bounds );
+    }
+
+    /**
+     * Returns the number of lines that were indexed.
+     *
+     * @return
+     */
+    public int lineCount() {
+        return lineCount;
+    }
+
+    private int cellX(float x) {
+        return Math.max( 0, Math.min( cellsX - 1, (int) ((x - originX) / cellSize) ) );
+    }
+
+    private int cellY(float y) {
+        return Math.max( 0, Math.min( cellsY - 1, (int) ((y - originY) / cellSize) ) );
+    }
+
+    /**
+     * Passes each line whose bounding box intersects a rectangle to a visitor, exactly once.
+     *
+     * @param xMin
+     * @param yMin
+     * @param xMax
+     * @param yMax
+     * @param visitor
+     * @return number of lines visited
+     */
+    public int query(float xMin, float yMin, float xMax, float yMax, LineBuffer.Visitor visitor)
+    {
+        final int qx0 = cellX( xMin ), qx1 = cellX( xMax );
+        final int qy0 = cellY( yMin ), qy1 = cellY( yMax );
+        final float[] tmp = new float[4];
+        int result = 0;
+        for ( int cy = qy0; cy <= qy1; cy++ )
+        {
+            for ( int cx = qx0; cx <= qx1; cx++ )
+            {
+                final int cell = cy * cellsX + cx;
+                for ( int i = cellStart[cell], end = cellStart[cell + 1]; i < end; i++ )
+                {
+                    lines.get( lineIndices[i], tmp );
+                    final float lxMin = Math.min( tmp[0], tmp[2] ), lxMax = Math.max( tmp[0], tmp[2] );
+                    final float lyMin = Math.min( tmp[1], tmp[3] ), lyMax = Math.max( tmp[1], tmp[3] );
+                    if ( lxMax < xMin || lxMin > xMax || lyMax < yMin || lyMin > yMax ) {
+                        continue;
+                    }
+                    // lines spanning several cells get reported by the first of them inside the query range only
+                    if ( Math.max( cellX( lxMin ), qx0 ) != cx || Math.max( cellY( lyMin ), qy0 ) != cy ) {
+                        continue;
+                    }
+                    visitor.visitLine( tmp[0], tmp[1], tmp[2], tmp[3] );
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Clips a line against a rectangle (Liang-Barsky).
+     *
+     * @param line <code>x1,y1,x2,y2</code>, replaced with the clipped line
+     * @param xMin
+     * @param yMin
+     * @param xMax
+     * @param yMax
+     * @return <code>false</code> if the line lies completely outside of the rectangle
+     */
+    public static boolean clip(float[] line, float xMin, float yMin, float xMax, float yMax)
+    {
+        final float x1 = line[0], y1 = line[1];
+        final float dx = line[2] - x1, dy = line[3] - y1;
+        float t0 = 0, t1 = 1;
+        final float[] p = { -dx, dx, -dy, dy };
+        final float[] q = { x1 - xMin, xMax - x1, y1 - yMin, yMax - y1 };
+        for ( int i = 0; i < 4; i++ )
+        {
+            if ( p[i] == 0 )
+            {
+                if ( q[i] < 0 ) {
+                    return false;
+                }
+                continue;
+            }
+            final float t = q[i] / p[i];
+            if ( p[i] < 0 )
+            {
+                if ( t > t1 ) {
+                    return false;
+                }
+                t0 = Math.max( t0, t );
+            }
+            else
+            {
+                if ( t < t0 ) {
+                    return false;
+                }
+                t1 = Math.min( t1, t );
+            }
+        }
+        if ( t1 < 1 ) {
+            line[2] = x1 + t1 * dx;
+            line[3] = y1 + t1 * dy;
+        }
+        if ( t0 > 0 ) {
+            line[0] = x1 + t0 * dx;
+            line[1] = y1 + t0 * dy;
+        }
+        return true;
+    }
+}
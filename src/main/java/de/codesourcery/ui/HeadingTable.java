@@ -0,0 +1,161 @@
+package de.codesourcery.ui;
+
+/**
+ * Unit direction vectors for <code>N</code> discrete headings, evenly spaced by <code>360/N</code> degrees.
+ *
+ * A turtle whose turning angles are all multiples of <code>360/N</code> can track its heading as an
+ * index into this table instead of an angle, so moving needs no trigonometry and turning by a
+ * full circle always ends up at exactly the same heading.
+ *
+ * Moves along discrete headings are done in fixed-point arithmetic (see {@link #step(float, double)}), so the position reached
+ * by a sequence of moves does not depend on the order of the moves, which allows interpreting strings in parallel
+ * (see {@link ParallelInterpreter}).
+ *
+ * @see PrimitiveTurtle#headings(HeadingTable)
+ */
+public final class HeadingTable
+{
+    /**
+     * Largest number of headings {@link #forAngles(float...)} will consider.
+     */
+    public static final int MAX_HEADINGS = 3600;
+
+    /**
+     * Returned by {@link #steps(float)} for angles that are no multiple of the step size.
+     */
+    public static final int NOT_COMMENSURATE = Integer.MIN_VALUE;
+
+    private static final double EPSILON = 1e-4;
+
+    /**
+     * Number of fractional bits of fixed-point coordinates.
+     */
+    public static final int FRACTION_BITS = 32;
+
+    private static final double ONE = 1L << FRACTION_BITS;
+
+    private final int count;
+    private final float[] degrees;
+    private final double[] dirX;
+    private final double[] dirY;
+
+    public HeadingTable(int count)
+    {
+        if ( count < 1 || count > MAX_HEADINGS ) {
+            throw new IllegalArgumentException( "Number of headings must be in range [1," + MAX_HEADINGS + "], was " + count );
+        }
+        this.count = count;
+        this.degrees = new float[ count ];
+        this.dirX = new double[ count ];
+        this.dirY = new double[ count ];
+        for ( int i = 0; i < count; i++ )
+        {
+            degrees[i] = (float) ( i * 360.0 / count );
+            // same conversion as for continuous headings, so both agree on headings that are whole degrees
+            final float angleInRad = (float) ((degrees[i] - 90) * Math.PI / 180f);
+            dirX[i] = Math.cos( angleInRad );
+            dirY[i] = Math.sin( angleInRad );
+        }
+    }
+
+    /**
+     * Returns the smallest table all given angles are multiples of the step size of.
+     *
+     * @param angles angles in degrees
+     * @return table or <code>null</code> if the angles are not commensurate with any number of headings up to {@link #MAX_HEADINGS}
+     */
+    public static HeadingTable forAngles(float... angles)
+    {
+outer:
+        for ( int n = 1; n <= MAX_HEADINGS; n++ )
+        {
+            for ( final float angle : angles )
+            {
+                if ( ! isMultiple( angle, n ) ) {
+                    continue outer;
+                }
+            }
+            return new HeadingTable( n );
+        }
+        return null;
+    }
+
+    private static boolean isMultiple(float angle, int count)
+    {
+        final double steps = angle * (double) count / 360.0;
+        return Math.abs( steps - Math.rint( steps ) ) < EPSILON;
+    }
+
+    /**
+     * Returns the number of headings.
+     *
+     * @return
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Converts an angle into a number of steps.
+     *
+     * @param angleInDeg
+     * @return number of steps in range [0,count) or {@link #NOT_COMMENSURATE}
+     */
+    public int steps(float angleInDeg)
+    {
+        if ( ! isMultiple( angleInDeg, count ) ) {
+            return NOT_COMMENSURATE;
+        }
+        final int result = (int) ( Math.round( angleInDeg * (double) count / 360.0 ) % count );
+        return result < 0 ? result + count : result;
+    }
+
+    /**
+     * Returns the heading reached by turning a number of steps.
+     *
+     * @param heading
+     * @param steps
+     * @return
+     */
+    public int turn(int heading, int steps)
+    {
+        final int result = (heading + steps) % count;
+        return result < 0 ? result + count : result;
+    }
+
+    /**
+     * Returns a fixed-point coordinate delta.
+     *
+     * @param len length of the move
+     * @param direction component of a unit direction vector
+     * @return
+     */
+    public static long step(float len, double direction) {
+        return Math.round( len * direction * ONE );
+    }
+
+    public static long toFixed(float value) {
+        return Math.round( value * ONE );
+    }
+
+    public static float toFloat(long fixed) {
+        return (float) ( fixed / ONE );
+    }
+
+    public float degrees(int heading) {
+        return degrees[heading];
+    }
+
+    public double dirX(int heading) {
+        return dirX[heading];
+    }
+
+    public double dirY(int heading) {
+        return dirY[heading];
+    }
+
+    @Override
+    public String toString() {
+        return "HeadingTable[ " + count + " headings, " + (360.0 / count) + " degrees per step ]";
+    }
+}
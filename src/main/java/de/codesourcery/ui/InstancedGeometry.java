@@ -0,0 +1,393 @@
+package de.codesourcery.ui;
+
+import java.awt.geom.AffineTransform;
+import java.util.Arrays;
+import de.codesourcery.SymbolSink;
+
+/**
+ * Geometry made up of prototypes that get referenced by instances carrying a rigid transform.
+ *
+ * The lines drawn when expanding a symbol for <code>k</code> more iterations are always the same, apart from
+ * the position and heading of the turtle when it encounters the symbol. So instead of expanding
+ * the derived string to the very end, the string <code>k</code> iterations earlier gets interpreted with each of its
+ * symbols placing an instance of the symbol's prototype (and moving the turtle to where the prototype ends).
+ * Memory usage is proportional to the size of the prototypes plus the number of instances rather than to the number of lines.
+ *
+ * Lines get generated on the fly when visiting the geometry, in the same order rendering the fully expanded string would yield,
+ * see {@link #visit(AffineTransform, LineBuffer.Visitor)}.
+ *
+ * @see de.codesourcery.LSystemCalculator#instanced(int, int, de.codesourcery.TableRenderer)
+ */
+public final class InstancedGeometry
+{
+    // prototype lines in local coordinates (turtle starting at the origin with orientation 0), indexed by symbol id
+    private final float[][] prototypes;
+    // lines not belonging to any prototype
+    private final float[] looseLines;
+    private final int looseFloats;
+
+    private final int instanceCount;
+    private final int[] instancePrototype;
+    // number of loose line floats added before each instance got placed
+    private final int[] instanceLooseEnd;
+    private final float[] instanceX;
+    private final float[] instanceY;
+    private final float[] instanceCos;
+    private final float[] instanceSin;
+
+    private final Bounds bounds;
+
+    private InstancedGeometry(Builder builder)
+    {
+        this.prototypes = builder.prototypeLines;
+        this.looseLines = builder.looseLines;
+        this.looseFloats = builder.looseFloats;
+        this.instanceCount = builder.instanceCount;
+        this.instancePrototype = builder.instancePrototype;
+        this.instanceLooseEnd = builder.instanceLooseEnd;
+        this.instanceX = builder.instanceX;
+        this.instanceY = builder.instanceY;
+        this.instanceCos = builder.instanceCos;
+        this.instanceSin = builder.instanceSin;
+        this.bounds = builder.bounds;
+    }
+
+    public int instanceCount() {
+        return instanceCount;
+    }
+
+    /**
+     * Returns the number of lines stored in prototypes (or not belonging to any prototype).
+     *
+     * @return
+     */
+    public int storedLineCount()
+    {
+        int result = looseFloats / 4;
+        for ( final float[] p : prototypes ) {
+            result += p == null ? 0 : p.length / 4;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of lines this geometry expands to.
+     *
+     * @return
+     */
+    public long lineCount()
+    {
+        long result = looseFloats / 4;
+        for ( int i = 0; i < instanceCount; i++ ) {
+            result += prototypes[ instancePrototype[i] ].length / 4;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the bounding box of all lines.
+     *
+     * The bounding box is conservative, it may be slightly larger than the tightest one.
+     *
+     * @return
+     */
+    public Bounds bounds() {
+        return bounds;
+    }
+
+    /**
+     * Expands all instances, passing each line to a visitor.
+     *
+     * @param transform transform to apply to the lines
+     * @param visitor
+     */
+    public void visit(AffineTransform transform, LineBuffer.Visitor visitor)
+    {
+        final double m00 = transform.getScaleX();
+        final double m01 = transform.getShearX();
+        final double m02 = transform.getTranslateX();
+        final double m10 = transform.getShearY();
+        final double m11 = transform.getScaleY();
+        final double m12 = transform.getTranslateY();
+
+        int loosePtr = 0;
+        for ( int i = 0; i < instanceCount; i++ )
+        {
+            // loose lines drawn before the instance
+            visit( looseLines, loosePtr, instanceLooseEnd[i], m00, m01, m02, m10, m11, m12, visitor );
+            loosePtr = instanceLooseEnd[i];
+
+            // transform * instance transform
+            final double c = instanceCos[i];
+            final double s = instanceSin[i];
+            final double x = instanceX[i];
+            final double y = instanceY[i];
+            final float[] lines = prototypes[ instancePrototype[i] ];
+            visit( lines, 0, lines.length,
+                   m00 * c + m01 * s, -m00 * s + m01 * c, m00 * x + m01 * y + m02,
+                   m10 * c + m11 * s, -m10 * s + m11 * c, m10 * x + m11 * y + m12, visitor );
+        }
+        visit( looseLines, loosePtr, looseFloats, m00, m01, m02, m10, m11, m12, visitor );
+    }
+
+    private static void visit(float[] lines, int start, int end, double m00, double m01, double m02, double m10, double m11, double m12, LineBuffer.Visitor visitor)
+    {
+        for ( int i = start; i < end; i += 4 )
+        {
+            final float x1 = lines[i];
+            final float y1 = lines[i + 1];
+            final float x2 = lines[i + 2];
+            final float y2 = lines[i + 3];
+            visitor.visitLine( (float) (m00 * x1 + m01 * y1 + m02), (float) (m10 * x1 + m11 * y1 + m12),
+                               (float) (m00 * x2 + m01 * y2 + m02), (float) (m10 * x2 + m11 * y2 + m12) );
+        }
+    }
+
+    /**
+     * Expands all instances into a line buffer (for example to export them).
+     *
+     * @param output
+     */
+    public void expandTo(LineBuffer output) {
+        visit( new AffineTransform(), output::append );
+    }
+
+    @Override
+    public String toString() {
+        return "InstancedGeometry[ " + instanceCount + " instances, " + storedLineCount() + " stored lines, " + lineCount() + " lines total ]";
+    }
+
+    /**
+     * Records prototypes and places instances of them.
+     *
+     * Prototypes need to be recorded first, each of them by rendering the expansion of its symbol into the turtle
+     * returned by {@link #startPrototype(int)}. Afterwards, the string to place the prototypes with gets passed to {@link #placementSink()}.
+     */
+    public static final class Builder
+    {
+        private final ActionTable actions;
+
+        private final float[][] prototypeLines;
+        private final float[] exitX;
+        private final float[] exitY;
+        private final float[] exitHeading;
+        private final Bounds[] prototypeBounds;
+
+        private int currentPrototype = -1;
+        private LineBuffer currentLines;
+        private Bounds currentBounds;
+        private PrimitiveTurtle currentTurtle;
+
+        private float[] looseLines = new float[ 64 ];
+        private int looseFloats;
+
+        private int instanceCount;
+        private int[] instancePrototype = new int[ 1024 ];
+        private int[] instanceLooseEnd = new int[ 1024 ];
+        private float[] instanceX = new float[ 1024 ];
+        private float[] instanceY = new float[ 1024 ];
+        private float[] instanceCos = new float[ 1024 ];
+        private float[] instanceSin = new float[ 1024 ];
+
+        private final Bounds bounds = new Bounds();
+
+        public Builder(ActionTable actions)
+        {
+            this.actions = actions;
+            final int symbolCount = actions.symbolCount();
+            this.prototypeLines = new float[ symbolCount ][];
+            this.exitX = new float[ symbolCount ];
+            this.exitY = new float[ symbolCount ];
+            this.exitHeading = new float[ symbolCount ];
+            this.prototypeBounds = new Bounds[ symbolCount ];
+        }
+
+        /**
+         * Starts recording the prototype of a symbol.
+         *
+         * @param symbol
+         * @return turtle to render the symbol's expansion into
+         */
+        public Turtle startPrototype(int symbol)
+        {
+            if ( currentPrototype != -1 ) {
+                throw new IllegalStateException( "Prototype of symbol " + currentPrototype + " has not been finished" );
+            }
+            currentPrototype = symbol;
+            currentLines = new LineBuffer();
+            currentBounds = new Bounds();
+            currentTurtle = new PrimitiveTurtle( currentLines, currentBounds );
+            return currentTurtle;
+        }
+
+        /**
+         * Returns the number of branches opened and not closed again by the prototype being recorded.
+         *
+         * @return
+         */
+        public int openBranches()
+        {
+            if ( currentPrototype == -1 ) {
+                throw new IllegalStateException( "No prototype is being recorded" );
+            }
+            return currentTurtle.stackDepth();
+        }
+
+        /**
+         * Finishes recording a prototype.
+         *
+         * @throws IllegalStateException if the prototype's branches are unbalanced
+         */
+        public void endPrototype()
+        {
+            final int open = openBranches();
+            final int symbol = currentPrototype;
+            currentPrototype = -1;
+            if ( open != 0 ) {
+                throw new IllegalStateException( "Expansion of symbol " + symbol + " leaves " + open + " unbalanced branches" );
+            }
+            final float[] lines = new float[ currentLines.lineCount() * 4 ];
+            final int[] ptr = { 0 };
+            currentLines.visit( (x1, y1, x2, y2) -> {
+                lines[ptr[0]++] = x1;
+                lines[ptr[0]++] = y1;
+                lines[ptr[0]++] = x2;
+                lines[ptr[0]++] = y2;
+            } );
+            prototypeLines[symbol] = lines;
+            prototypeBounds[symbol] = currentBounds;
+            exitX[symbol] = currentTurtle.x();
+            exitY[symbol] = currentTurtle.y();
+            exitHeading[symbol] = currentTurtle.orientationInDegrees();
+            currentLines = null;
+            currentTurtle = null;
+            currentBounds = null;
+        }
+
+        /**
+         * Returns a sink that places an instance for each symbol that has a prototype and executes
+         * the actions of all other symbols.
+         *
+         * @return
+         */
+        public SymbolSink placementSink()
+        {
+            return new SymbolSink()
+            {
+                private double x, y;
+                private double orientationInDegrees;
+                private double[] stack = new double[ 3 * 16 ];
+                private int stackPtr;
+
+                @Override
+                public void accept(int symbol)
+                {
+                    if ( prototypeLines[symbol] != null ) {
+                        place( symbol );
+                        return;
+                    }
+                    if ( ! actions.isDefined( symbol ) ) {
+                        throw new IllegalArgumentException( "Unhandled symbol with ID " + symbol );
+                    }
+                    for ( int pc = actions.first[symbol], end = actions.first[symbol + 1]; pc < end; pc++ )
+                    {
+                        final float operand = actions.operands[pc];
+                        switch( actions.opcodes[pc] )
+                        {
+                            case ActionTable.FORWARD:
+                                final double rad = Math.toRadians( orientationInDegrees - 90 );
+                                final double newX = x + operand * Math.cos( rad );
+                                final double newY = y + operand * Math.sin( rad );
+                                addLooseLine( (float) x, (float) y, (float) newX, (float) newY );
+                                x = newX;
+                                y = newY;
+                                break;
+                            case ActionTable.TURN_LEFT:  orientationInDegrees -= operand; break;
+                            case ActionTable.TURN_RIGHT: orientationInDegrees += operand; break;
+                            case ActionTable.PUSH:
+                                if ( stackPtr == stack.length ) {
+                                    stack = Arrays.copyOf( stack, stackPtr * 2 );
+                                }
+                                stack[stackPtr++] = x;
+                                stack[stackPtr++] = y;
+                                stack[stackPtr++] = orientationInDegrees;
+                                break;
+                            case ActionTable.POP:
+                                if ( stackPtr == 0 ) {
+                                    throw new IllegalStateException( "Branch stack is empty" );
+                                }
+                                orientationInDegrees = stack[--stackPtr];
+                                y = stack[--stackPtr];
+                                x = stack[--stackPtr];
+                                break;
+                            default:
+                                throw new IllegalStateException( "Unknown opcode " + actions.opcodes[pc] );
+                        }
+                    }
+                }
+
+                private void place(int symbol)
+                {
+                    final double rad = Math.toRadians( orientationInDegrees );
+                    final double c = Math.cos( rad );
+                    final double s = Math.sin( rad );
+                    if ( prototypeLines[symbol].length > 0 ) {
+                        addInstance( symbol, (float) x, (float) y, (float) c, (float) s );
+                    }
+                    final double ex = exitX[symbol];
+                    final double ey = exitY[symbol];
+                    x += c * ex - s * ey;
+                    y += s * ex + c * ey;
+                    orientationInDegrees += exitHeading[symbol];
+                }
+            };
+        }
+
+        private void addLooseLine(float x1, float y1, float x2, float y2)
+        {
+            if ( looseFloats == looseLines.length ) {
+                looseLines = Arrays.copyOf( looseLines, looseFloats * 2 );
+            }
+            looseLines[looseFloats++] = x1;
+            looseLines[looseFloats++] = y1;
+            looseLines[looseFloats++] = x2;
+            looseLines[looseFloats++] = y2;
+            bounds.update( x1, y1, x2, y2 );
+        }
+
+        private void addInstance(int symbol, float x, float y, float c, float s)
+        {
+            if ( instanceCount == instancePrototype.length )
+            {
+                final int newSize = instanceCount * 2;
+                instancePrototype = Arrays.copyOf( instancePrototype, newSize );
+                instanceLooseEnd = Arrays.copyOf( instanceLooseEnd, newSize );
+                instanceX = Arrays.copyOf( instanceX, newSize );
+                instanceY = Arrays.copyOf( instanceY, newSize );
+                instanceCos = Arrays.copyOf( instanceCos, newSize );
+                instanceSin = Arrays.copyOf( instanceSin, newSize );
+            }
+            instancePrototype[instanceCount] = symbol;
+            instanceLooseEnd[instanceCount] = looseFloats;
+            instanceX[instanceCount] = x;
+            instanceY[instanceCount] = y;
+            instanceCos[instanceCount] = c;
+            instanceSin[instanceCount++] = s;
+
+            // conservative: corners of the transformed prototype bounds
+            final Bounds b = prototypeBounds[symbol];
+            updateBounds( x, y, c, s, b.xMin, b.yMin );
+            updateBounds( x, y, c, s, b.xMax, b.yMin );
+            updateBounds( x, y, c, s, b.xMin, b.yMax );
+            updateBounds( x, y, c, s, b.xMax, b.yMax );
+        }
+
+        private void updateBounds(float x, float y, float c, float s, float px, float py) {
+            bounds.update( x + c * px - s * py, y + s * px + c * py );
+        }
+
+        public InstancedGeometry build() {
+            return new InstancedGeometry( this );
+        }
+    }
+}
@@ -1,38 +1,495 @@
 package de.codesourcery.ui;
 
 import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import de.codesourcery.util.MyFloatBuffer;
 
+/**
+ * Off-heap storage for lines.
+ *
+ * By default, each line is stored as four independent floats (<code>x1,y1,x2,y2</code>).
+ * Buffers created with {@link #withPolylines()} store a stream of vertices (<code>x,y</code>) instead, where consecutive
+ * vertices are connected and a pair of NaNs marks the end of a run. Since turtle paths are mostly connected,
+ * this needs roughly half the memory and half the work for transforming. A new run gets started whenever a
+ * line does not start where the previous one ended, i.e. after pen-up moves, {@link Turtle#pop()} or {@link Turtle#recall(TurtleState)}.
+ *
+ * Both kinds of buffers can be visited as lines as well as polylines.
+ */
 public final class LineBuffer
 {
     private static final int FLOATS_PER_POINT = 2;
     private static final int FLOATS_PER_LINE = 2*FLOATS_PER_POINT;
 
-    private final MyFloatBuffer buffer = new MyFloatBuffer( 1000*FLOATS_PER_LINE );
+    private final MyFloatBuffer buffer;
+    private final boolean polylines;
+    // number of lines, only maintained for polyline buffers
+    private int polylineLineCount;
+
+    // number of lines before / after the last compaction
+    private int linesBeforeCompaction;
+    private int linesAfterCompaction;
 
     public interface Visitor {
         void visitLine(float x1, float y1, float x2, float y2);
     }
 
+    /**
+     * Visitor that also gets passed the index of each line, for use with {@link LineBuffer#get(int, float[])}.
+     */
+    public interface IndexedVisitor {
+        void visitLine(int line, float x1, float y1, float x2, float y2);
+    }
+
+    public interface PolylineVisitor
+    {
+        /**
+         * Visits a run of connected lines.
+         *
+         * @param coordinates <code>x,y</code> of each vertex, only valid during this call
+         * @param vertexCount number of vertices, at least 2
+         */
+        void visitPolyline(float[] coordinates, int vertexCount);
+    }
+
+    public LineBuffer() {
+        this( new MyFloatBuffer( 1000*FLOATS_PER_LINE ) );
+    }
+
+    LineBuffer(MyFloatBuffer buffer) {
+        this( buffer, false, buffer.size() / FLOATS_PER_LINE );
+    }
+
+    LineBuffer(MyFloatBuffer buffer, boolean polylines, int lineCount)
+    {
+        this.buffer = buffer;
+        this.polylines = polylines;
+        this.polylineLineCount = polylines ? lineCount : 0;
+    }
+
+    /**
+     * Creates a buffer that stores lines as polylines with shared vertices.
+     *
+     * Polyline buffers don't support {@link #reserve(int)} and {@link #set(int, float, float, float, float)}.
+     *
+     * @return
+     */
+    public static LineBuffer withPolylines() {
+        return new LineBuffer( new MyFloatBuffer( 1000*FLOATS_PER_LINE ), true, 0 );
+    }
+
+    /**
+     * Creates an empty buffer that stores lines in memory taken from another buffer (see {@link #detach()}).
+     *
+     * @param memory
+     * @return
+     */
+    public static LineBuffer reuse(ByteBuffer memory) {
+        return new LineBuffer( MyFloatBuffer.reuse( memory ) );
+    }
+
+    public boolean isPolylineMode() {
+        return polylines;
+    }
+
     public int lineCount() {
-        return buffer.size() / FLOATS_PER_LINE;
+        return polylines ? polylineLineCount : buffer.size() / FLOATS_PER_LINE;
+    }
+
+    /**
+     * Returns whether the lines can't be modified, for example because they are backed by a read-only file mapping.
+     *
+     * @return
+     */
+    public boolean isReadOnly() {
+        return buffer.isReadOnly();
+    }
+
+    private void assertWritable()
+    {
+        if ( isReadOnly() ) {
+            throw new UnsupportedOperationException( "Buffer is read-only" );
+        }
     }
 
     public void append(float x1, float y1, float x2, float y2) {
 
-        buffer.append( x1, y1, x2, y2 );
+        assertWritable();
+        if ( ! polylines ) {
+            buffer.append( x1, y1, x2, y2 );
+            return;
+        }
+        final int size = buffer.size();
+        if ( size == 0 ) {
+            buffer.append( x1, y1, x2, y2 );
+        } else if ( buffer.get( size - 2 ) == x1 && buffer.get( size - 1 ) == y1 ) {
+            buffer.append( x2, y2 );
+        } else {
+            buffer.append( Float.NaN, Float.NaN );
+            buffer.append( x1, y1, x2, y2 );
+        }
+        polylineLineCount++;
+    }
+
+    /**
+     * Appends a number of lines whose coordinates are yet to be set using {@link #set(int, float, float, float, float)}.
+     *
+     * @param count
+     * @return index of the first line added
+     */
+    public int reserve(int count)
+    {
+        assertSegmentMode();
+        assertWritable();
+        final int first = lineCount();
+        buffer.setSize( Math.addExact( buffer.size(), Math.multiplyExact( count, FLOATS_PER_LINE ) ) );
+        return first;
+    }
+
+    /**
+     * Sets the coordinates of a line.
+     *
+     * Concurrently setting different lines is safe.
+     *
+     * @param line
+     * @param x1
+     * @param y1
+     * @param x2
+     * @param y2
+     */
+    public void set(int line, float x1, float y1, float x2, float y2) {
+        assertSegmentMode();
+        assertWritable();
+        buffer.put( line * FLOATS_PER_LINE, x1, y1, x2, y2 );
+    }
+
+    private void assertSegmentMode()
+    {
+        if ( polylines ) {
+            throw new UnsupportedOperationException( "Not supported by polyline buffers" );
+        }
+    }
+
+    /**
+     * Reads the coordinates of a line.
+     *
+     * @param line index of the line as passed to {@link IndexedVisitor}, for buffers not in polyline mode this is
+     *             simply the line's position
+     * @param coordinates array to store <code>x1,y1,x2,y2</code> in
+     */
+    public void get(int line, float[] coordinates) {
+        buffer.get( line * (polylines ? FLOATS_PER_POINT : FLOATS_PER_LINE), coordinates );
     }
 
     public void clear() {
+        assertWritable();
         buffer.clear();
+        polylineLineCount = 0;
+    }
+
+    /**
+     * Merges chains of connected, collinear lines into single lines, in place.
+     *
+     * Consecutive lines get merged as long as each line starts where the previous one ended and
+     * the end of each line lies within <code>tolerance</code> of the line through the chain's start point along
+     * the chain's initial direction (without reversing direction). Runs of forward moves like <code>F F F F</code>
+     * become a single line, so everything downstream (indexing, transforming, drawing) handles fewer lines.
+     *
+     * @param tolerance max. distance (in model space) between joints and the merged line
+     * @return number of lines removed
+     * @see #compactionRatio()
+     */
+    public int compact(float tolerance)
+    {
+        assertWritable();
+        if ( polylines ) {
+            return compactPolylines( tolerance );
+        }
+        final int count = lineCount();
+        final float[] tmp = new float[4];
+        int written = 0;
+        float startX = 0, startY = 0, endX = 0, endY = 0;
+        // unit direction of the current chain
+        float dirX = 0, dirY = 0;
+        boolean hasChain = false;
+        for ( int i = 0; i < count; i++ )
+        {
+            get( i, tmp );
+            if ( hasChain && Math.abs( tmp[0] - endX ) <= tolerance && Math.abs( tmp[1] - endY ) <= tolerance )
+            {
+                final float dx = tmp[2] - startX;
+                final float dy = tmp[3] - startY;
+                // distance from the chain's line and position along it
+                final float distance = Math.abs( dx * dirY - dy * dirX );
+                final float along = dx * dirX + dy * dirY;
+                final float previousAlong = (endX - startX) * dirX + (endY - startY) * dirY;
+                if ( distance <= tolerance && along >= previousAlong )
+                {
+                    endX = tmp[2];
+                    endY = tmp[3];
+                    continue;
+                }
+            }
+            if ( hasChain ) {
+                set( written++, startX, startY, endX, endY );
+            }
+            startX = tmp[0];
+            startY = tmp[1];
+            endX = tmp[2];
+            endY = tmp[3];
+            final float len = (float) Math.hypot( endX - startX, endY - startY );
+            // zero-length lines have no direction and can't be extended
+            dirX = len == 0 ? 0 : (endX - startX) / len;
+            dirY = len == 0 ? 0 : (endY - startY) / len;
+            hasChain = len != 0;
+            if ( ! hasChain ) {
+                set( written++, startX, startY, endX, endY );
+            }
+        }
+        if ( hasChain ) {
+            set( written++, startX, startY, endX, endY );
+        }
+        buffer.setSize( written * FLOATS_PER_LINE );
+        linesBeforeCompaction = count;
+        linesAfterCompaction = written;
+        return count - written;
+    }
+
+    /*
+     * Same as compact() but drops vertices within runs, all lines of a run are connected already.
+     */
+    private int compactPolylines(float tolerance)
+    {
+        final int count = lineCount();
+        final int size = buffer.size();
+        int written = 0;
+        int lines = 0;
+        int i = 0;
+        while ( i < size )
+        {
+            if ( Float.isNaN( buffer.get( i ) ) ) {
+                buffer.put( written, Float.NaN, Float.NaN );
+                written += FLOATS_PER_POINT;
+                i += FLOATS_PER_POINT;
+                continue;
+            }
+            // first vertex of a run
+            float startX = buffer.get( i ), startY = buffer.get( i + 1 );
+            float endX = startX, endY = startY;
+            float dirX = 0, dirY = 0;
+            boolean hasChain = false;
+            buffer.put( written, startX, startY );
+            written += FLOATS_PER_POINT;
+            for ( i += FLOATS_PER_POINT; i < size && ! Float.isNaN( buffer.get( i ) ); i += FLOATS_PER_POINT )
+            {
+                final float x = buffer.get( i ), y = buffer.get( i + 1 );
+                if ( hasChain )
+                {
+                    final float dx = x - startX;
+                    final float dy = y - startY;
+                    final float distance = Math.abs( dx * dirY - dy * dirX );
+                    final float along = dx * dirX + dy * dirY;
+                    final float previousAlong = (endX - startX) * dirX + (endY - startY) * dirY;
+                    if ( distance <= tolerance && along >= previousAlong )
+                    {
+                        endX = x;
+                        endY = y;
+                        continue;
+                    }
+                    buffer.put( written, endX, endY );
+                    written += FLOATS_PER_POINT;
+                    lines++;
+                    startX = endX;
+                    startY = endY;
+                }
+                endX = x;
+                endY = y;
+                final float len = (float) Math.hypot( endX - startX, endY - startY );
+                hasChain = len != 0;
+                if ( hasChain ) {
+                    dirX = (endX - startX) / len;
+                    dirY = (endY - startY) / len;
+                } else {
+                    // zero-length lines have no direction and can't be extended
+                    buffer.put( written, endX, endY );
+                    written += FLOATS_PER_POINT;
+                    lines++;
+                }
+            }
+            if ( hasChain ) {
+                buffer.put( written, endX, endY );
+                written += FLOATS_PER_POINT;
+                lines++;
+            }
+        }
+        buffer.setSize( written );
+        polylineLineCount = lines;
+        linesBeforeCompaction = count;
+        linesAfterCompaction = lines;
+        return count - lines;
+    }
+
+    /**
+     * Returns the ratio of the number of lines before and after the last compaction.
+     *
+     * @return ratio, 1 if lines have not been compacted
+     */
+    public float compactionRatio() {
+        return linesAfterCompaction == 0 ? 1 : linesBeforeCompaction / (float) linesAfterCompaction;
+    }
+
+    /**
+     * Returns the number of off-heap bytes allocated by this buffer.
+     *
+     * @return
+     */
+    public long sizeInBytes() {
+        return buffer.sizeInBytes();
+    }
+
+    /**
+     * Drops the off-heap memory of this buffer, leaving it empty (see {@link MyFloatBuffer#free()}).
+     */
+    public void free() {
+        buffer.free();
+        polylineLineCount = 0;
+    }
+
+    /**
+     * Takes the off-heap memory out of this buffer so it can be reused (see {@link #reuse(ByteBuffer)}), leaving this buffer empty.
+     *
+     * @return memory or <code>null</code> if this buffer holds no memory that could be written to
+     */
+    public ByteBuffer detach()
+    {
+        polylineLineCount = 0;
+        return buffer.detach();
     }
 
+    /**
+     * Transforms all lines into another buffer.
+     *
+     * @param outputBuffer buffer using the same storage mode as this one
+     * @param transform
+     * @param compactDestinationIfPossible
+     */
     public void transform(LineBuffer outputBuffer, AffineTransform transform, boolean compactDestinationIfPossible)
     {
+        if ( outputBuffer.polylines != polylines ) {
+            throw new IllegalArgumentException( "Output buffer must use the same storage mode" );
+        }
+        outputBuffer.assertWritable();
+        // NaN run breaks stay NaN
         buffer.transformTo( outputBuffer.buffer, transform, compactDestinationIfPossible );
+        outputBuffer.polylineLineCount = polylineLineCount;
+    }
+
+    /**
+     * Writes the raw contents of this buffer to a channel as little-endian floats.
+     *
+     * @param channel
+     * @throws IOException
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        buffer.writeTo( channel );
+    }
+
+    /**
+     * Returns the number of floats written by {@link #writeTo(WritableByteChannel)}.
+     *
+     * @return
+     */
+    public int floatCount() {
+        return buffer.size();
     }
 
-    public void visit(LineBuffer.Visitor visitor) {
-        buffer.visit( visitor );
+    public void visit(LineBuffer.Visitor visitor)
+    {
+        if ( polylines ) {
+            visitIndexed( (line, x1, y1, x2, y2) -> visitor.visitLine( x1, y1, x2, y2 ) );
+        } else {
+            buffer.visit( visitor );
+        }
+    }
+
+    public void visitIndexed(IndexedVisitor visitor)
+    {
+        final int size = buffer.size();
+        if ( ! polylines )
+        {
+            final float[] tmp = new float[4];
+            for ( int i = 0, line = 0; i < size; i += FLOATS_PER_LINE, line++ ) {
+                buffer.get( i, tmp );
+                visitor.visitLine( line, tmp[0], tmp[1], tmp[2], tmp[3] );
+            }
+            return;
+        }
+        for ( int i = FLOATS_PER_POINT; i < size; i += FLOATS_PER_POINT )
+        {
+            final float x2 = buffer.get( i );
+            final float x1 = buffer.get( i - FLOATS_PER_POINT );
+            // lines never start or end with a run break
+            if ( ! Float.isNaN( x1 ) && ! Float.isNaN( x2 ) ) {
+                visitor.visitLine( i / FLOATS_PER_POINT - 1, x1, buffer.get( i - 1 ), x2, buffer.get( i + 1 ) );
+            }
+        }
+    }
+
+    /**
+     * Visits runs of connected lines.
+     *
+     * Buffers not in polyline mode get split into runs wherever a line does not start where the previous one ended.
+     *
+     * @param visitor
+     */
+    public void visitPolylines(PolylineVisitor visitor)
+    {
+        final float[][] coords = { new float[ 64 ] };
+        final int[] floats = { 0 };
+        final IndexedVisitor collector = (line, x1, y1, x2, y2) ->
+        {
+            float[] run = coords[0];
+            if ( floats[0] > 0 && (run[ floats[0] - 2 ] != x1 || run[ floats[0] - 1 ] != y1) ) {
+                visitor.visitPolyline( run, floats[0] / FLOATS_PER_POINT );
+                floats[0] = 0;
+            }
+            if ( floats[0] + FLOATS_PER_LINE > run.length ) {
+                run = coords[0] = Arrays.copyOf( run, run.length * 2 );
+            }
+            if ( floats[0] == 0 ) {
+                run[ floats[0]++ ] = x1;
+                run[ floats[0]++ ] = y1;
+            }
+            run[ floats[0]++ ] = x2;
+            run[ floats[0]++ ] = y2;
+        };
+        if ( polylines )
+        {
+            // runs are separated explicitly, even if the next one starts where the previous one ended
+            final int size = buffer.size();
+            for ( int i = 0; i < size; i += FLOATS_PER_POINT )
+            {
+                if ( Float.isNaN( buffer.get( i ) ) )
+                {
+                    if ( floats[0] > 0 ) {
+                        visitor.visitPolyline( coords[0], floats[0] / FLOATS_PER_POINT );
+                        floats[0] = 0;
+                    }
+                    continue;
+                }
+                if ( floats[0] + FLOATS_PER_POINT > coords[0].length ) {
+                    coords[0] = Arrays.copyOf( coords[0], coords[0].length * 2 );
+                }
+                coords[0][ floats[0]++ ] = buffer.get( i );
+                coords[0][ floats[0]++ ] = buffer.get( i + 1 );
+            }
+        } else {
+            visitIndexed( collector );
+        }
+        if ( floats[0] > 0 ) {
+            visitor.visitPolyline( coords[0], floats[0] / FLOATS_PER_POINT );
+        }
     }
-}
\ No newline at end of file
+}
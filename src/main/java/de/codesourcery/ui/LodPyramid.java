@@ -0,0 +1,227 @@
+package de.codesourcery.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Level-of-detail hierarchy over the lines of a {@link LineBuffer}.
+ *
+ * Level 0 holds the original lines, each coarser level snaps all endpoints to the centers of a grid whose
+ * cells are twice as large as the previous level's (vertex clustering). Lines collapsing into a single cell get dropped
+ * and lines connecting the same two cells get merged, so connectivity is preserved while the number of lines
+ * shrinks with the number of occupied cells. Since the grids are nested, each level can be derived from the
+ * previous one and an endpoint never moves further than half a cell diagonal from its original position.
+ *
+ * Each level comes with its own {@link GridIndex}, so culling works at any level.
+ */
+public final class LodPyramid
+{
+    /**
+     * Max. number of cells along the longer side of the bounding box at the finest simplified level.
+     */
+    static final int FINEST_CELLS = 1 << 15;
+
+    /**
+     * Levels get stored only if they have at most this fraction of the lines of the previous level.
+     */
+    static final float MIN_REDUCTION = 0.75f;
+
+    /**
+     * Levels with fewer lines are not simplified any further.
+     */
+    static final int MIN_LINES = 64;
+
+    private final List<LineBuffer> lines = new ArrayList<>();
+    private final List<GridIndex> indices = new ArrayList<>();
+    // max. distance of an endpoint from its original position in model space, per level
+    private final List<Float> errors = new ArrayList<>();
+    private final int lineCount;
+
+    private LodPyramid(LineBuffer original, Bounds bounds)
+    {
+        this.lineCount = original.lineCount();
+        add( original, bounds, 0 );
+
+        final float extent = Math.max( bounds.width(), bounds.height() );
+        if ( extent <= 0 ) {
+            return;
+        }
+        // cells smaller than the average line hardly merge anything
+        final double[] totalLength = { 0 };
+        original.visit( (x1, y1, x2, y2) -> totalLength[0] += Math.hypot( x2 - x1, y2 - y1 ) );
+        final float meanLength = (float) (totalLength[0] / Math.max( 1, lineCount ));
+
+        LineBuffer previous = original;
+        float cellSize = extent / FINEST_CELLS;
+        while ( cellSize < meanLength ) {
+            cellSize *= 2;
+        }
+        while ( cellSize < extent && previous.lineCount() >= MIN_LINES )
+        {
+            final LineBuffer simplified = simplify( previous, bounds, cellSize );
+            if ( simplified.lineCount() <= previous.lineCount() * MIN_REDUCTION )
+            {
+                add( simplified, bounds, (float) (cellSize * Math.sqrt( 2 ) / 2) );
+                previous = simplified;
+            } else {
+                // not worth storing, the next level gets derived from the current one instead
+                simplified.free();
+            }
+            cellSize *= 2;
+        }
+    }
+
+    private void add(LineBuffer buffer, Bounds bounds, float error)
+    {
+        lines.add( buffer );
+        indices.add( GridIndex.build( buffer, bounds ) );
+        errors.add( error );
+    }
+
+    /**
+     * Builds the hierarchy over all lines currently in a buffer.
+     *
+     * @param lines
+     * @param bounds bounding box of all lines
+     * @return
+     */
+    public static LodPyramid build(LineBuffer lines, Bounds bounds) {
+        return new LodPyramid( lines, bounds );
+    }
+
+    private static LineBuffer simplify(LineBuffer input, Bounds bounds, float cellSize)
+    {
+        final LineBuffer result = new LineBuffer();
+        final LongHashSet seen = new LongHashSet( Math.max( 16, input.lineCount() / 2 ) );
+        final float originX = bounds.xMin;
+        final float originY = bounds.yMin;
+        input.visit( (x1, y1, x2, y2) ->
+        {
+            final int cx1 = (int) ((x1 - originX) / cellSize), cy1 = (int) ((y1 - originY) / cellSize);
+            final int cx2 = (int) ((x2 - originX) / cellSize), cy2 = (int) ((y2 - originY) / cellSize);
+            if ( cx1 == cx2 && cy1 == cy2 ) {
+                return;
+            }
+            // cell coordinates fit into 16 bits each, direction does not matter
+            final int cell1 = cx1 << 16 | cy1;
+            final int cell2 = cx2 << 16 | cy2;
+            final long key = Math.min( cell1, cell2 ) * (1L << 32) + Math.max( cell1, cell2 );
+            if ( seen.add( key ) )
+            {
+                result.append( originX + (cx1 + 0.5f) * cellSize, originY + (cy1 + 0.5f) * cellSize,
+                               originX + (cx2 + 0.5f) * cellSize, originY + (cy2 + 0.5f) * cellSize );
+            }
+        } );
+        return result;
+    }
+
+    /**
+     * Returns the number of lines the hierarchy was built from.
+     *
+     * @return
+     */
+    public int lineCount() {
+        return lineCount;
+    }
+
+    public int levelCount() {
+        return lines.size();
+    }
+
+    public LineBuffer lines(int level) {
+        return lines.get( level );
+    }
+
+    public GridIndex index(int level) {
+        return indices.get( level );
+    }
+
+    /**
+     * Returns how far endpoints at a level may be off their original position.
+     *
+     * @param level
+     * @return distance in model space
+     */
+    public float error(int level) {
+        return errors.get( level );
+    }
+
+    /**
+     * Returns the coarsest level whose error stays within a threshold on screen.
+     *
+     * @param scale ratio of screen space to model space distances
+     * @param maxPixelError
+     * @return
+     */
+    public int level(float scale, float maxPixelError)
+    {
+        for ( int level = levelCount() - 1; level > 0; level-- )
+        {
+            if ( errors.get( level ) * scale <= maxPixelError ) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Drops the off-heap memory of all simplified levels (level 0 is owned by the caller), see {@link LineBuffer#free()}.
+     */
+    public void free()
+    {
+        for ( int level = 1; level < lines.size(); level++ ) {
+            lines.get( level ).free();
+        }
+    }
+
+    /*
+     * Open-addressing set of non-zero longs.
+     */
+    private static final class LongHashSet
+    {
+        private long[] keys;
+        private int size;
+
+        LongHashSet(int expectedSize) {
+            keys = new long[ Integer.highestOneBit( expectedSize * 2 - 1 ) << 1 ];
+        }
+
+        boolean add(long key)
+        {
+            if ( size * 2 >= keys.length ) {
+                grow();
+            }
+            final int mask = keys.length - 1;
+            for ( int i = hash( key ) & mask; ; i = (i + 1) & mask )
+            {
+                if ( keys[i] == key ) {
+                    return false;
+                }
+                if ( keys[i] == 0 ) {
+                    keys[i] = key;
+                    size++;
+                    return true;
+                }
+            }
+        }
+
+        private void grow()
+        {
+            final long[] old = keys;
+            keys = new long[ old.length * 2 ];
+            size = 0;
+            for ( final long key : old )
+            {
+                if ( key != 0 ) {
+                    add( key );
+                }
+            }
+        }
+
+        private static int hash(long key)
+        {
+            final long h = key * 0x9e3779b97f4a7c15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
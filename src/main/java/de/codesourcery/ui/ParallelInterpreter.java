@@ -0,0 +1,415 @@
+package de.codesourcery.ui;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Interprets a string of symbols in parallel, yielding exactly the same lines as a {@link PrimitiveTurtle} would.
+ *
+ * Each substring maps to a transform of the turtle state: how many entries it pops off the branch stack it was
+ * entered with, the states it leaves on the stack and the state it ends in. With discrete headings and fixed-point positions
+ * (see {@link HeadingTable}), each of those states can be described relative to the state the substring continues from
+ * (the entry state or the last entry it popped) as a relative heading plus the number of moves per (relative heading, move length),
+ * which is exact because adding fixed-point deltas is associative.
+ *
+ * Interpretation works in three passes:
+ * <ol>
+ *   <li>The input is split into chunks and the transform and number of lines of each chunk get computed concurrently.</li>
+ *   <li>A scan over the transforms yields the absolute state (and popped stack entries) each chunk starts with,
+ *       a prefix sum over the line counts yields each chunk's region in the {@link LineBuffer}.</li>
+ *   <li>All chunks get interpreted concurrently from their absolute start states into disjoint regions of the line buffer.</li>
+ * </ol>
+ * Only strings that are rendered with the pen down and discrete headings into a line buffer that is not in polyline mode (regions of
+ * polyline buffers can't be reserved upfront) are supported, see {@link #supports(int, ActionTable, PrimitiveTurtle)}.
+ */
+public final class ParallelInterpreter
+{
+    /**
+     * Number of symbols interpreted by a single task.
+     */
+    public static final int CHUNK_SIZE = 64*1024;
+
+    private final ActionTable actions;
+    private final HeadingTable headings;
+    private final int headingCount;
+    private final int lengthCount;
+    // index of the move length, per forward opcode
+    private final int[] lengthIndex;
+    // number of steps to turn, per turn opcode
+    private final int[] turnSteps;
+    // fixed-point deltas, indexed by heading * lengthCount + length index
+    private final long[] stepX;
+    private final long[] stepY;
+
+    /**
+     * Transform of the turtle state by a chunk.
+     */
+    private static final class Summary
+    {
+        int lineCount;
+        // number of entries popped off the stack the chunk started with
+        int pops;
+        // states pushed and not popped again by the chunk, followed by the final state, relative to the base state
+        int[] relativeHeadings;
+        long[][] moveCounts;
+    }
+
+    public ParallelInterpreter(ActionTable actions)
+    {
+        this.actions = actions;
+        this.headings = actions.headings();
+        if ( headings == null ) {
+            throw new IllegalArgumentException( "Turning angles are not commensurate" );
+        }
+        this.headingCount = headings.count();
+
+        final int opCount = actions.opcodes.length;
+        lengthIndex = new int[ opCount ];
+        turnSteps = new int[ opCount ];
+        float[] lengths = new float[ 0 ];
+        for ( int pc = 0; pc < opCount; pc++ )
+        {
+            final float operand = actions.operands[pc];
+            switch( actions.opcodes[pc] )
+            {
+                case ActionTable.FORWARD:
+                    int idx = 0;
+                    while ( idx < lengths.length && Float.floatToIntBits( lengths[idx] ) != Float.floatToIntBits( operand ) ) {
+                        idx++;
+                    }
+                    if ( idx == lengths.length ) {
+                        lengths = Arrays.copyOf( lengths, idx + 1 );
+                        lengths[idx] = operand;
+                    }
+                    lengthIndex[pc] = idx;
+                    break;
+                case ActionTable.TURN_LEFT:
+                    turnSteps[pc] = headings.steps( -operand );
+                    break;
+                case ActionTable.TURN_RIGHT:
+                    turnSteps[pc] = headings.steps( operand );
+                    break;
+                default:
+                    // push/pop have no operand
+            }
+        }
+        lengthCount = Math.max( 1, lengths.length );
+        stepX = new long[ headingCount * lengthCount ];
+        stepY = new long[ headingCount * lengthCount ];
+        for ( int h = 0; h < headingCount; h++ )
+        {
+            for ( int l = 0; l < lengths.length; l++ )
+            {
+                stepX[h * lengthCount + l] = HeadingTable.step( lengths[l], headings.dirX( h ) );
+                stepY[h * lengthCount + l] = HeadingTable.step( lengths[l], headings.dirY( h ) );
+            }
+        }
+    }
+
+    /**
+     * Returns whether a string can (and should) be interpreted in parallel.
+     *
+     * @param length length of the string
+     * @param actions
+     * @param turtle turtle the string is going to be rendered into, after {@link Turtle#penDown()} and {@link Turtle#headings(HeadingTable)}
+     * @return
+     */
+    public static boolean supports(int length, ActionTable actions, PrimitiveTurtle turtle)
+    {
+        if ( length <= CHUNK_SIZE || actions.headings() == null || turtle.headingTable() != actions.headings() || ! turtle.isPenDown() ||
+             turtle.lines().isPolylineMode() )
+        {
+            return false;
+        }
+        for ( int i = 0; i < turtle.stackDepth(); i++ )
+        {
+            if ( ! turtle.stackPenDown( i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Interprets a string.
+     *
+     * @param symbols symbol ids
+     * @param length number of symbols
+     * @param turtle turtle to draw with, on return it is in the same state as if it had interpreted the string itself
+     */
+    public void run(byte[] symbols, int length, PrimitiveTurtle turtle)
+    {
+        if ( ! supports( length, actions, turtle ) ) {
+            throw new IllegalArgumentException( "Parallel interpretation is not supported for this string/turtle" );
+        }
+        final int chunkCount = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        // 1. transform of each chunk
+        final Summary[] summaries = new Summary[ chunkCount ];
+        IntStream.range( 0, chunkCount ).parallel().forEach( chunk ->
+            summaries[chunk] = summarize( symbols, chunk * CHUNK_SIZE, Math.min( length, (chunk + 1) * CHUNK_SIZE ) )
+        );
+
+        // 2. scan transforms for absolute start states and line counts for line offsets
+        int depth = turtle.stackDepth();
+        long[] stackX = new long[ Math.max( 16, depth ) ];
+        long[] stackY = new long[ stackX.length ];
+        int[] stackHeading = new int[ stackX.length ];
+        for ( int i = 0; i < depth; i++ ) {
+            stackX[i] = turtle.stackFixedX( i );
+            stackY[i] = turtle.stackFixedY( i );
+            stackHeading[i] = turtle.stackHeading( i );
+        }
+        long x = turtle.fixedX();
+        long y = turtle.fixedY();
+        int heading = turtle.heading();
+
+        final long[][] entryStates = new long[ chunkCount ][];
+        final int[] lineOffsets = new int[ chunkCount + 1 ];
+        for ( int chunk = 0; chunk < chunkCount; chunk++ )
+        {
+            final Summary summary = summaries[chunk];
+            if ( summary.pops > depth ) {
+                throw new IllegalStateException( "Branch stack is empty" );
+            }
+            lineOffsets[chunk + 1] = Math.addExact( lineOffsets[chunk], summary.lineCount );
+
+            // entry state followed by the stack entries the chunk pops, in popping order
+            final long[] entry = new long[ 3 * (1 + summary.pops) ];
+            entry[0] = x;
+            entry[1] = y;
+            entry[2] = heading;
+            for ( int i = 1; i <= summary.pops; i++ )
+            {
+                depth--;
+                entry[3 * i] = stackX[depth];
+                entry[3 * i + 1] = stackY[depth];
+                entry[3 * i + 2] = stackHeading[depth];
+            }
+            entryStates[chunk] = entry;
+
+            // state the chunk continues from
+            final int baseIdx = 3 * summary.pops;
+            final long baseX = entry[baseIdx];
+            final long baseY = entry[baseIdx + 1];
+            final int baseHeading = (int) entry[baseIdx + 2];
+
+            final int stateCount = summary.relativeHeadings.length;
+            for ( int i = 0; i < stateCount; i++ )
+            {
+                final long[] counts = summary.moveCounts[i];
+                long sx = baseX;
+                long sy = baseY;
+                final int h = headings.turn( baseHeading, summary.relativeHeadings[i] );
+                for ( int r = 0; r < headingCount; r++ )
+                {
+                    final int stepIdx = headings.turn( baseHeading, r ) * lengthCount;
+                    for ( int l = 0; l < lengthCount; l++ )
+                    {
+                        final long count = counts[r * lengthCount + l];
+                        if ( count != 0 ) {
+                            sx += count * stepX[stepIdx + l];
+                            sy += count * stepY[stepIdx + l];
+                        }
+                    }
+                }
+                if ( i == stateCount - 1 ) {
+                    x = sx;
+                    y = sy;
+                    heading = h;
+                } else {
+                    if ( depth == stackX.length ) {
+                        stackX = Arrays.copyOf( stackX, depth * 2 );
+                        stackY = Arrays.copyOf( stackY, depth * 2 );
+                        stackHeading = Arrays.copyOf( stackHeading, depth * 2 );
+                    }
+                    stackX[depth] = sx;
+                    stackY[depth] = sy;
+                    stackHeading[depth++] = h;
+                }
+            }
+        }
+
+        // 3. interpret all chunks into disjoint regions of the line buffer
+        final LineBuffer lines = turtle.lines();
+        final int firstLine = lines.reserve( lineOffsets[chunkCount] );
+        final float[][] chunkBounds = new float[ chunkCount ][];
+        IntStream.range( 0, chunkCount ).parallel().forEach( chunk ->
+            chunkBounds[chunk] = draw( symbols, chunk * CHUNK_SIZE, Math.min( length, (chunk + 1) * CHUNK_SIZE ),
+                                       entryStates[chunk], lines, firstLine + lineOffsets[chunk] )
+        );
+
+        final Bounds bounds = turtle.bounds();
+        for ( final float[] b : chunkBounds )
+        {
+            if ( b != null ) {
+                bounds.update( b[0], b[1], b[2], b[3] );
+            }
+        }
+        turtle.restore( x, y, heading, stackX, stackY, stackHeading, depth );
+    }
+
+    private Summary summarize(byte[] symbols, int start, int end)
+    {
+        final long[] counts = new long[ headingCount * lengthCount ];
+        // moves on the path from the base state to the current state
+        int[] moves = new int[ 1024 ];
+        int moveCount = 0;
+        int[] pushedHeadings = new int[ 16 ];
+        int[] pushedMoveCounts = new int[ 16 ];
+        int stackPtr = 0;
+
+        int relativeHeading = 0;
+        int lineCount = 0;
+        int pops = 0;
+
+        final byte[] opcodes = actions.opcodes;
+        final int[] first = actions.first;
+        for ( int i = start; i < end; i++ )
+        {
+            final int symbol = symbols[i] & 0xff;
+            if ( ! actions.isDefined( symbol ) ) {
+                throw new IllegalArgumentException( "Unhandled symbol with ID " + symbol );
+            }
+            for ( int pc = first[symbol], last = first[symbol + 1]; pc < last; pc++ )
+            {
+                switch( opcodes[pc] )
+                {
+                    case ActionTable.FORWARD:
+                        final int move = relativeHeading * lengthCount + lengthIndex[pc];
+                        counts[move]++;
+                        if ( moveCount == moves.length ) {
+                            moves = Arrays.copyOf( moves, moveCount * 2 );
+                        }
+                        moves[moveCount++] = move;
+                        lineCount++;
+                        break;
+                    case ActionTable.TURN_LEFT:
+                    case ActionTable.TURN_RIGHT:
+                        relativeHeading = headings.turn( relativeHeading, turnSteps[pc] );
+                        break;
+                    case ActionTable.PUSH:
+                        if ( stackPtr == pushedHeadings.length ) {
+                            pushedHeadings = Arrays.copyOf( pushedHeadings, stackPtr * 2 );
+                            pushedMoveCounts = Arrays.copyOf( pushedMoveCounts, stackPtr * 2 );
+                        }
+                        pushedHeadings[stackPtr] = relativeHeading;
+                        pushedMoveCounts[stackPtr++] = moveCount;
+                        break;
+                    case ActionTable.POP:
+                        final int keep;
+                        if ( stackPtr > 0 ) {
+                            stackPtr--;
+                            keep = pushedMoveCounts[stackPtr];
+                            relativeHeading = pushedHeadings[stackPtr];
+                        } else {
+                            // pops an entry this chunk did not push, which becomes the new base state
+                            pops++;
+                            keep = 0;
+                            relativeHeading = 0;
+                        }
+                        while ( moveCount > keep ) {
+                            counts[ moves[--moveCount] ]--;
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException( "Unknown opcode " + opcodes[pc] );
+                }
+            }
+        }
+
+        final Summary result = new Summary();
+        result.lineCount = lineCount;
+        result.pops = pops;
+        result.relativeHeadings = new int[ stackPtr + 1 ];
+        result.moveCounts = new long[ stackPtr + 1 ][];
+
+        // move counts of the states still on the stack are prefixes of the current path
+        final long[] prefix = new long[ counts.length ];
+        int ptr = 0;
+        for ( int i = 0; i < stackPtr; i++ )
+        {
+            while ( ptr < pushedMoveCounts[i] ) {
+                prefix[ moves[ptr++] ]++;
+            }
+            result.relativeHeadings[i] = pushedHeadings[i];
+            result.moveCounts[i] = prefix.clone();
+        }
+        result.relativeHeadings[stackPtr] = relativeHeading;
+        result.moveCounts[stackPtr] = counts;
+        return result;
+    }
+
+    /*
+     * @param entry entry state (x, y, heading) followed by the stack entries popped by the chunk
+     * @return bounds (xMin, yMin, xMax, yMax) of all lines drawn, null if there are none
+     */
+    private float[] draw(byte[] symbols, int start, int end, long[] entry, LineBuffer lines, int firstLine)
+    {
+        long x = entry[0];
+        long y = entry[1];
+        int heading = (int) entry[2];
+        int popped = 0;
+
+        long[] stack = new long[ 3 * 16 ];
+        int stackPtr = 0;
+
+        float xMin = Float.POSITIVE_INFINITY, yMin = Float.POSITIVE_INFINITY;
+        float xMax = Float.NEGATIVE_INFINITY, yMax = Float.NEGATIVE_INFINITY;
+        int line = firstLine;
+
+        final byte[] opcodes = actions.opcodes;
+        final int[] first = actions.first;
+        for ( int i = start; i < end; i++ )
+        {
+            final int symbol = symbols[i] & 0xff;
+            for ( int pc = first[symbol], last = first[symbol + 1]; pc < last; pc++ )
+            {
+                switch( opcodes[pc] )
+                {
+                    case ActionTable.FORWARD:
+                        final int stepIdx = heading * lengthCount + lengthIndex[pc];
+                        final float x1 = HeadingTable.toFloat( x );
+                        final float y1 = HeadingTable.toFloat( y );
+                        x += stepX[stepIdx];
+                        y += stepY[stepIdx];
+                        final float x2 = HeadingTable.toFloat( x );
+                        final float y2 = HeadingTable.toFloat( y );
+                        lines.set( line++, x1, y1, x2, y2 );
+                        xMin = Math.min( xMin, Math.min( x1, x2 ) );
+                        yMin = Math.min( yMin, Math.min( y1, y2 ) );
+                        xMax = Math.max( xMax, Math.max( x1, x2 ) );
+                        yMax = Math.max( yMax, Math.max( y1, y2 ) );
+                        break;
+                    case ActionTable.TURN_LEFT:
+                    case ActionTable.TURN_RIGHT:
+                        heading = headings.turn( heading, turnSteps[pc] );
+                        break;
+                    case ActionTable.PUSH:
+                        if ( stackPtr == stack.length ) {
+                            stack = Arrays.copyOf( stack, stackPtr * 2 );
+                        }
+                        stack[stackPtr++] = x;
+                        stack[stackPtr++] = y;
+                        stack[stackPtr++] = heading;
+                        break;
+                    case ActionTable.POP:
+                        if ( stackPtr > 0 ) {
+                            heading = (int) stack[--stackPtr];
+                            y = stack[--stackPtr];
+                            x = stack[--stackPtr];
+                        } else {
+                            popped++;
+                            x = entry[3 * popped];
+                            y = entry[3 * popped + 1];
+                            heading = (int) entry[3 * popped + 2];
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException( "Unknown opcode " + opcodes[pc] );
+                }
+            }
+        }
+        return line == firstLine ? null : new float[] { xMin, yMin, xMax, yMax };
+    }
+}
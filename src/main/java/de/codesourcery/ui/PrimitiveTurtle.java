@@ -0,0 +1,409 @@
+package de.codesourcery.ui;
+
+import java.awt.Point;
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+
+/**
+ * A turtle that writes the lines it draws straight into a {@link LineBuffer}.
+ *
+ * Position, heading and pen state as well as the branch stack used by {@link #push()}/{@link #pop()}
+ * live in primitive fields and preallocated arrays, so moving, turning and branching allocate nothing
+ * (the stack only grows when it gets deeper than ever before).
+ * The direction vector is cached and only recomputed when the heading changes and the bounding box
+ * only gets updated with the start of a line if it does not already contain it.
+ *
+ * Optionally, the heading can be tracked as an index into a {@link HeadingTable} (see {@link #headings(HeadingTable)}), which
+ * removes all trigonometry and angle normalization from turning. The turtle automatically falls back to
+ * continuous headings as soon as it gets asked to turn by an angle that is no multiple of the table's step size.
+ * While headings are discrete, positions are tracked in fixed-point arithmetic (see {@link HeadingTable#step(float, double)}).
+ */
+public final class PrimitiveTurtle implements Turtle
+{
+    private static final int INITIAL_STACK_SIZE = 64;
+
+    private final LineBuffer lines;
+    private final Bounds bounds;
+
+    private float originX, originY;
+
+    private float cursorX, cursorY;
+    private float orientationInDegrees;
+    private boolean penIsDown;
+    // direction of a unit step for the current orientation
+    private double dirX, dirY;
+    // whether the current position has already been added to the bounding box
+    private boolean isInBounds;
+
+    // null if using continuous headings
+    private HeadingTable headings;
+    private int heading;
+    // position in fixed-point representation, only valid if headings are discrete
+    private long fixedX, fixedY;
+    // cache for the last turning angle converted to steps
+    private float lastAngle = Float.NaN;
+    private int lastSteps;
+
+    private float[] stackX = new float[ INITIAL_STACK_SIZE ];
+    private float[] stackY = new float[ INITIAL_STACK_SIZE ];
+    private float[] stackOrientation = new float[ INITIAL_STACK_SIZE ];
+    private double[] stackDirX = new double[ INITIAL_STACK_SIZE ];
+    private double[] stackDirY = new double[ INITIAL_STACK_SIZE ];
+    private int[] stackHeading = new int[ INITIAL_STACK_SIZE ];
+    private long[] stackFixedX = new long[ INITIAL_STACK_SIZE ];
+    private long[] stackFixedY = new long[ INITIAL_STACK_SIZE ];
+    // bit 0: pen is down, bit 1: position is in bounds
+    private byte[] stackFlags = new byte[ INITIAL_STACK_SIZE ];
+    private int stackPtr;
+
+    public PrimitiveTurtle(LineBuffer lines, Bounds bounds)
+    {
+        this.lines = lines;
+        this.bounds = bounds;
+        reset();
+    }
+
+    /**
+     * Sets the position the turtle starts at after a {@link #reset()}.
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    public PrimitiveTurtle origin(float x, float y)
+    {
+        this.originX = x;
+        this.originY = y;
+        return this;
+    }
+
+    public float x() {
+        return cursorX;
+    }
+
+    public float y() {
+        return cursorY;
+    }
+
+    public float orientationInDegrees() {
+        return orientationInDegrees;
+    }
+
+    public boolean isPenDown() {
+        return penIsDown;
+    }
+
+    /**
+     * Switches to discrete headings.
+     *
+     * @param table table to use, <code>null</code> to switch to continuous headings
+     * @return
+     */
+    @Override
+    public PrimitiveTurtle headings(HeadingTable table)
+    {
+        headings = null;
+        lastAngle = Float.NaN;
+        if ( table != null )
+        {
+            final int steps = table.steps( orientationInDegrees );
+            if ( steps != HeadingTable.NOT_COMMENSURATE ) {
+                headings = table;
+                setHeading( steps );
+                fixedX = HeadingTable.toFixed( cursorX );
+                fixedY = HeadingTable.toFixed( cursorY );
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns whether headings are currently discrete.
+     *
+     * @return
+     */
+    public boolean hasDiscreteHeadings() {
+        return headings != null;
+    }
+
+    /**
+     * Returns the current depth of the branch stack.
+     *
+     * @return
+     */
+    public int stackDepth() {
+        return stackPtr;
+    }
+
+    @Override
+    public Turtle reset()
+    {
+        lines.clear();
+        bounds.reset();
+
+        cursorX = originX;
+        cursorY = originY;
+        penIsDown = false;
+        isInBounds = false;
+        stackPtr = 0;
+        headings = null;
+        setOrientation( 0 );
+        return this;
+    }
+
+    @Override
+    public Turtle penUp() {
+        penIsDown = false;
+        return this;
+    }
+
+    @Override
+    public Turtle penDown() {
+        penIsDown = true;
+        return this;
+    }
+
+    @Override
+    public Turtle forward(float len)
+    {
+        final float x;
+        final float y;
+        if ( headings != null )
+        {
+            fixedX += HeadingTable.step( len, dirX );
+            fixedY += HeadingTable.step( len, dirY );
+            x = HeadingTable.toFloat( fixedX );
+            y = HeadingTable.toFloat( fixedY );
+        } else {
+            x = (float) (cursorX + len * dirX);
+            y = (float) (cursorY + len * dirY);
+        }
+
+        if ( penIsDown )
+        {
+            lines.append( cursorX, cursorY, x, y );
+            if ( ! isInBounds ) {
+                bounds.update( cursorX, cursorY );
+            }
+            bounds.update( x, y );
+            isInBounds = true;
+        } else {
+            isInBounds = false;
+        }
+        cursorX = x;
+        cursorY = y;
+        return this;
+    }
+
+    @Override
+    public Turtle turnLeft(float angleInDeg) {
+        return turn( -angleInDeg );
+    }
+
+    @Override
+    public Turtle turnRight(float angleInDeg) {
+        return turn( angleInDeg );
+    }
+
+    private Turtle turn(float angleInDeg)
+    {
+        if ( headings != null )
+        {
+            if ( angleInDeg != lastAngle ) {
+                lastSteps = headings.steps( angleInDeg );
+                lastAngle = angleInDeg;
+            }
+            if ( lastSteps != HeadingTable.NOT_COMMENSURATE ) {
+                return setHeading( headings.turn( heading, lastSteps ) );
+            }
+            // fall back to continuous headings
+            headings = null;
+        }
+        return setOrientation( orientationInDegrees + angleInDeg );
+    }
+
+    private Turtle setHeading(int newHeading)
+    {
+        heading = newHeading;
+        orientationInDegrees = headings.degrees( newHeading );
+        dirX = headings.dirX( newHeading );
+        dirY = headings.dirY( newHeading );
+        return this;
+    }
+
+    private Turtle setOrientation(float newAngle)
+    {
+        while ( newAngle > 360 ) {
+            newAngle -= 360;
+        }
+        while ( newAngle < 0 ) {
+            newAngle += 360;
+        }
+        orientationInDegrees = newAngle;
+        final float angleInRad = (float) ((newAngle - 90) * Math.PI / 180f);
+        dirX = Math.cos( angleInRad );
+        dirY = Math.sin( angleInRad );
+        return this;
+    }
+
+    @Override
+    public Turtle push()
+    {
+        if ( stackPtr == stackX.length ) {
+            growStack();
+        }
+        stackX[stackPtr] = cursorX;
+        stackY[stackPtr] = cursorY;
+        stackOrientation[stackPtr] = orientationInDegrees;
+        stackDirX[stackPtr] = dirX;
+        stackDirY[stackPtr] = dirY;
+        stackHeading[stackPtr] = heading;
+        stackFixedX[stackPtr] = fixedX;
+        stackFixedY[stackPtr] = fixedY;
+        stackFlags[stackPtr] = (byte) ( (penIsDown ? 1 : 0) | (isInBounds ? 2 : 0) );
+        stackPtr++;
+        return this;
+    }
+
+    @Override
+    public Turtle pop()
+    {
+        if ( stackPtr == 0 ) {
+            throw new IllegalStateException( "Branch stack is empty" );
+        }
+        stackPtr--;
+        cursorX = stackX[stackPtr];
+        cursorY = stackY[stackPtr];
+        orientationInDegrees = stackOrientation[stackPtr];
+        dirX = stackDirX[stackPtr];
+        dirY = stackDirY[stackPtr];
+        heading = stackHeading[stackPtr];
+        fixedX = stackFixedX[stackPtr];
+        fixedY = stackFixedY[stackPtr];
+        penIsDown = (stackFlags[stackPtr] & 1) != 0;
+        isInBounds = (stackFlags[stackPtr] & 2) != 0;
+        return this;
+    }
+
+    private void growStack()
+    {
+        final int newSize = stackX.length * 2;
+        stackX = Arrays.copyOf( stackX, newSize );
+        stackY = Arrays.copyOf( stackY, newSize );
+        stackOrientation = Arrays.copyOf( stackOrientation, newSize );
+        stackDirX = Arrays.copyOf( stackDirX, newSize );
+        stackDirY = Arrays.copyOf( stackDirY, newSize );
+        stackHeading = Arrays.copyOf( stackHeading, newSize );
+        stackFixedX = Arrays.copyOf( stackFixedX, newSize );
+        stackFixedY = Arrays.copyOf( stackFixedY, newSize );
+        stackFlags = Arrays.copyOf( stackFlags, newSize );
+    }
+
+    @Override
+    public Turtle recall(TurtleState state)
+    {
+        this.cursorX = state.location().x;
+        this.cursorY = state.location().y;
+        this.penIsDown = state.penIsDown();
+        this.isInBounds = false;
+        this.fixedX = HeadingTable.toFixed( cursorX );
+        this.fixedY = HeadingTable.toFixed( cursorY );
+        if ( headings != null )
+        {
+            final int steps = headings.steps( state.orientationInDegrees() );
+            if ( steps != HeadingTable.NOT_COMMENSURATE ) {
+                return setHeading( steps );
+            }
+            headings = null;
+        }
+        return setOrientation( state.orientationInDegrees() );
+    }
+
+    @Override
+    public Turtle goTo(Point p)
+    {
+        this.cursorX = p.x;
+        this.cursorY = p.y;
+        this.fixedX = HeadingTable.toFixed( cursorX );
+        this.fixedY = HeadingTable.toFixed( cursorY );
+        this.isInBounds = false;
+        return this;
+    }
+
+    @Override
+    public TurtleState state() {
+        return new TurtleState( new Point2D.Float( cursorX, cursorY ), penIsDown, orientationInDegrees );
+    }
+
+    @Override
+    public void repaint() {
+        // nothing to do
+    }
+
+    // state access for ParallelInterpreter, only meaningful while headings are discrete
+
+    LineBuffer lines() {
+        return lines;
+    }
+
+    Bounds bounds() {
+        return bounds;
+    }
+
+    HeadingTable headingTable() {
+        return headings;
+    }
+
+    int heading() {
+        return heading;
+    }
+
+    long fixedX() {
+        return fixedX;
+    }
+
+    long fixedY() {
+        return fixedY;
+    }
+
+    int stackHeading(int index) {
+        return stackHeading[index];
+    }
+
+    long stackFixedX(int index) {
+        return stackFixedX[index];
+    }
+
+    long stackFixedY(int index) {
+        return stackFixedY[index];
+    }
+
+    boolean stackPenDown(int index) {
+        return (stackFlags[index] & 1) != 0;
+    }
+
+    /**
+     * Replaces position, heading and branch stack, with the pen down.
+     */
+    void restore(long x, long y, int newHeading, long[] stackX, long[] stackY, int[] stackHeadings, int depth)
+    {
+        stackPtr = 0;
+        for ( int i = 0; i < depth; i++ )
+        {
+            setPosition( stackX[i], stackY[i], stackHeadings[i] );
+            push();
+        }
+        setPosition( x, y, newHeading );
+    }
+
+    private void setPosition(long x, long y, int newHeading)
+    {
+        fixedX = x;
+        fixedY = y;
+        cursorX = HeadingTable.toFloat( x );
+        cursorY = HeadingTable.toFloat( y );
+        penIsDown = true;
+        isInBounds = false;
+        setHeading( newHeading );
+    }
+}
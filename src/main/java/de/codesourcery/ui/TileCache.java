@@ -0,0 +1,267 @@
+package de.codesourcery.ui;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+/**
+ * Cache of fixed-size image tiles rendered in the background.
+ *
+ * Tiles are squares of {@link #TILE_SIZE} pixels in a pixel space whose origin is a fixed point in model space,
+ * keyed by the scene, the scale and their (x,y) position in that space. Panning only changes which tiles are visible, so
+ * it can be handled by compositing cached tiles while newly exposed ones get rendered by a pool of worker threads.
+ *
+ * Tiles get evicted in least-recently-used order when their total size exceeds the memory cap.
+ * Requests for tiles that went out of view before a worker got to them are dropped.
+ *
+ * @param <S> scene the tiles show, handed to the painter as it was when the tile got requested and compared using equals()
+ */
+public final class TileCache<S>
+{
+    public static final int TILE_SIZE = 256;
+
+    private static final long BYTES_PER_TILE = TILE_SIZE * TILE_SIZE * 4L;
+
+    /**
+     * Renders the contents of a tile.
+     */
+    @FunctionalInterface
+    public interface TilePainter<S>
+    {
+        /**
+         * Paints a tile.
+         *
+         * @param scene scene the tile was requested for
+         * @param graphics graphics of the tile image, already cleared
+         * @param transform transform from model space to tile pixels
+         */
+        void paint(S scene, Graphics2D graphics, AffineTransform transform);
+    }
+
+    private static final class Key
+    {
+        final Object scene;
+        final float scale;
+        final int x;
+        final int y;
+
+        Key(Object scene, float scale, int x, int y)
+        {
+            this.scene = scene;
+            this.scale = scale;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && k.scale == scale && k.x == x && k.y == y && k.scene.equals( scene );
+        }
+
+        @Override
+        public int hashCode() {
+            return ((scene.hashCode() * 31 + Float.floatToIntBits( scale )) * 31 + x) * 31 + y;
+        }
+    }
+
+    private final TilePainter<S> painter;
+    private final Runnable onTileRendered;
+    private final int maxTiles;
+    private final ExecutorService workers;
+
+    private final LinkedHashMap<Key,BufferedImage> tiles = new LinkedHashMap<>( 16, 0.75f, true );
+    // tiles queued or being rendered
+    private final Set<Key> pending = new HashSet<>();
+    // frame in which a tile was last requested
+    private final Map<Key,Long> requested = new HashMap<>();
+    // tiles the painter failed on, not retried until the cache gets cleared
+    private final Set<Key> failed = new HashSet<>();
+    // stands in for failed tiles, so frames containing them still get completed
+    private final BufferedImage emptyTile = new BufferedImage( TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB );
+    // number of tiles queued or being rendered per scene, including tiles that got discarded by clear()
+    private final Map<S,Integer> scheduled = new HashMap<>();
+    private long frame;
+    private long generation;
+
+    /**
+     * @param painter renders tiles, gets called concurrently from worker threads
+     * @param onTileRendered called from a worker thread whenever a tile has been rendered or failed to render
+     * @param maxBytes memory cap for all cached tiles
+     * @param threadCount number of worker threads
+     */
+    public TileCache(TilePainter<S> painter, Runnable onTileRendered, long maxBytes, int threadCount)
+    {
+        this.painter = painter;
+        this.onTileRendered = onTileRendered;
+        this.maxTiles = (int) Math.max( 1, Math.min( Integer.MAX_VALUE, maxBytes / BYTES_PER_TILE ) );
+        this.workers = Executors.newFixedThreadPool( threadCount, r ->
+        {
+            final Thread t = new Thread( r, "tile-renderer" );
+            t.setDaemon( true );
+            return t;
+        } );
+    }
+
+    /**
+     * Starts a new frame, tiles not requested during the previous or the current frame
+     * are not worth rendering any longer.
+     */
+    public synchronized void nextFrame() {
+        frame++;
+    }
+
+    /**
+     * Returns a cached tile, scheduling it for rendering if it is not cached.
+     *
+     * @param scene scene to render the tile from, must not be released before {@link #awaitIdle(Predicate)} returned for it
+     * @param scale ratio of tile pixels to model space distances
+     * @param origin transform from model space to the pixel space tiles are aligned to, at the given scale
+     * @param x tile position in pixel space divided by {@link #TILE_SIZE}
+     * @param y tile position in pixel space divided by {@link #TILE_SIZE}
+     * @return tile, an empty tile if rendering it failed or <code>null</code> if it has not been rendered yet
+     */
+    public synchronized BufferedImage get(S scene, float scale, AffineTransform origin, int x, int y)
+    {
+        final Key key = new Key( scene, scale, x, y );
+        final BufferedImage result = tiles.get( key );
+        if ( result != null ) {
+            return result;
+        }
+        if ( failed.contains( key ) ) {
+            return emptyTile;
+        }
+        requested.put( key, frame );
+        if ( pending.add( key ) )
+        {
+            final AffineTransform transform = AffineTransform.getTranslateInstance( -x * TILE_SIZE, -y * TILE_SIZE );
+            transform.concatenate( origin );
+            final long gen = generation;
+            scheduled.merge( scene, 1, Integer::sum );
+            workers.execute( () -> render( scene, key, transform, gen ) );
+        }
+        return null;
+    }
+
+    private void render(S scene, Key key, AffineTransform transform, long gen)
+    {
+        try
+        {
+            synchronized( this )
+            {
+                if ( gen != generation ) {
+                    return;
+                }
+                final Long lastRequested = requested.get( key );
+                if ( lastRequested == null || lastRequested < frame - 1 )
+                {
+                    pending.remove( key );
+                    requested.remove( key );
+                    return;
+                }
+            }
+            final BufferedImage image = paint( scene, key, transform );
+            synchronized( this )
+            {
+                if ( gen == generation )
+                {
+                    pending.remove( key );
+                    requested.remove( key );
+                    if ( image == null ) {
+                        failed.add( key );
+                    }
+                    else
+                    {
+                        tiles.put( key, image );
+                        final Iterator<BufferedImage> it = tiles.values().iterator();
+                        while ( tiles.size() > maxTiles && it.hasNext() ) {
+                            it.next();
+                            it.remove();
+                        }
+                    }
+                }
+            }
+            onTileRendered.run();
+        }
+        finally
+        {
+            synchronized( this )
+            {
+                scheduled.computeIfPresent( scene, (s, count) -> count == 1 ? null : count - 1 );
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Renders a tile, returns null if the painter failed.
+     */
+    private BufferedImage paint(S scene, Key key, AffineTransform transform)
+    {
+        try
+        {
+            final BufferedImage image = new BufferedImage( TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB );
+            final Graphics2D graphics = image.createGraphics();
+            try {
+                painter.paint( scene, graphics, transform );
+            } finally {
+                graphics.dispose();
+            }
+            return image;
+        }
+        catch (RuntimeException e)
+        {
+            System.err.println( "Failed to render tile (" + key.x + "," + key.y + ") at scale " + key.scale );
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Discards all tiles, including tiles that have been requested but not rendered yet.
+     *
+     * Tiles that are being rendered right now are finished but not cached, use {@link #awaitIdle(Predicate)}
+     * before releasing their scene.
+     */
+    public synchronized void clear()
+    {
+        generation++;
+        tiles.clear();
+        pending.clear();
+        requested.clear();
+        failed.clear();
+    }
+
+    /**
+     * Waits until no tile of the matching scenes is queued or being rendered.
+     *
+     * Once this method returns, the painter won't be invoked for these scenes until tiles get requested
+     * for them again, so they may be released.
+     *
+     * @param scenes
+     */
+    public synchronized void awaitIdle(Predicate<S> scenes)
+    {
+        while ( scheduled.keySet().stream().anyMatch( scenes ) )
+        {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return tiles.size();
+    }
+}
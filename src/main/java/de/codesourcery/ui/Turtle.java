@@ -20,6 +20,35 @@ public interface Turtle
 
     Turtle recall(TurtleState state);
 
+    /**
+     * Saves position, orientation and pen state on a stack, to be restored by {@link #pop()}.
+     *
+     * Unlike {@link #state()}, this does not create any objects.
+     *
+     * @return
+     */
+    Turtle push();
+
+    /**
+     * Restores the position, orientation and pen state saved by the most recent {@link #push()}.
+     *
+     * @return
+     */
+    Turtle pop();
+
+    /**
+     * Hints that all turning angles are going to be multiples of a table's step size,
+     * so the turtle may track its heading as a table index (see {@link HeadingTable}).
+     *
+     * Turtles are free to ignore this hint.
+     *
+     * @param table
+     * @return
+     */
+    default Turtle headings(HeadingTable table) {
+        return this;
+    }
+
     void repaint();
 
     Turtle reset();
@@ -74,6 +74,27 @@ public class TurtleSpy implements Turtle
         return delegate.recall( state );
     }
 
+    @Override
+    public Turtle push()
+    {
+        print( "push()" );
+        return delegate.push();
+    }
+
+    @Override
+    public Turtle pop()
+    {
+        print( "pop()" );
+        return delegate.pop();
+    }
+
+    @Override
+    public Turtle headings(HeadingTable table)
+    {
+        print( "headings(" + table + ")" );
+        return delegate.headings( table );
+    }
+
     @Override
     public void repaint()
     {
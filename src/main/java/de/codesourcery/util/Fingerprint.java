@@ -0,0 +1,96 @@
+package de.codesourcery.util;
+
+import java.util.Arrays;
+
+/**
+ * Incrementally computes a 64-bit content hash.
+ *
+ * Each value gets folded into the hash using a SplitMix64 finalizer, so the result depends on both the values and their order.
+ * Unlike {@link Object#hashCode()}, fingerprints are stable across JVM runs and can be persisted.
+ *
+ * Since different contents may (rarely) yield the same hash, a fingerprint can optionally record all values
+ * added to it (see {@link #recording()}), so contents can be compared exactly when the hashes are equal.
+ */
+public final class Fingerprint
+{
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long hash = 0xcbf29ce484222325L;
+
+    // all values added so far, null if not recording
+    private long[] values;
+    private int valueCount;
+
+    /**
+     * Creates a fingerprint that records all values added to it.
+     *
+     * @return
+     * @see #values()
+     */
+    public static Fingerprint recording()
+    {
+        final Fingerprint result = new Fingerprint();
+        result.values = new long[ 64 ];
+        return result;
+    }
+
+    public Fingerprint add(long value)
+    {
+        hash = mix( hash + GOLDEN_GAMMA ^ value );
+        if ( values != null )
+        {
+            if ( valueCount == values.length ) {
+                values = Arrays.copyOf( values, valueCount * 2 );
+            }
+            values[valueCount++] = value;
+        }
+        return this;
+    }
+
+    public Fingerprint add(float value) {
+        return add( Float.floatToIntBits( value ) );
+    }
+
+    public Fingerprint add(boolean value) {
+        return add( value ? 1 : 0 );
+    }
+
+    public Fingerprint add(String value)
+    {
+        add( value.length() );
+        for ( int i = 0; i < value.length(); i++ ) {
+            add( value.charAt( i ) );
+        }
+        return this;
+    }
+
+    public long value() {
+        return hash;
+    }
+
+    /**
+     * Returns all values that have been added.
+     *
+     * @return
+     * @throws IllegalStateException if this fingerprint is not {@link #recording() recording}
+     */
+    public long[] values()
+    {
+        if ( values == null ) {
+            throw new IllegalStateException( "Fingerprint does not record values" );
+        }
+        return Arrays.copyOf( values, valueCount );
+    }
+
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        return String.format( "%016x", hash );
+    }
+}
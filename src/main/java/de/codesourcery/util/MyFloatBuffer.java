@@ -1,20 +1,77 @@
 package de.codesourcery.util;
 
 import java.awt.geom.AffineTransform;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.channels.WritableByteChannel;
 import de.codesourcery.ui.LineBuffer;
 
 public class MyFloatBuffer
 {
     private int floatsInBufferCount;
+    // direct buffer backing the float view
+    private ByteBuffer bytes;
     private FloatBuffer buffer;
 
     public MyFloatBuffer(int initialCapacity) {
         if ( initialCapacity < 1 ) {
             throw new IllegalArgumentException();
         }
-        this.buffer = createOffHeapFloatBuffer( initialCapacity );
+        this.bytes = allocateOffHeap( initialCapacity );
+        this.buffer = bytes.asFloatBuffer();
+    }
+
+    private MyFloatBuffer(ByteBuffer bytes)
+    {
+        this.bytes = bytes;
+        this.buffer = bytes.order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer();
+        this.floatsInBufferCount = buffer.capacity();
+        this.buffer.position( floatsInBufferCount );
+    }
+
+    /**
+     * Wraps a direct (or memory-mapped) buffer holding little-endian floats without copying it.
+     *
+     * The buffer's whole capacity is taken as the contents, {@link #free()} drops the reference to it.
+     *
+     * @param bytes
+     * @return
+     */
+    public static MyFloatBuffer wrap(ByteBuffer bytes)
+    {
+        if ( ! bytes.isDirect() ) {
+            throw new IllegalArgumentException( "Buffer must be direct" );
+        }
+        return new MyFloatBuffer( bytes );
+    }
+
+    /**
+     * Writes the contents of this buffer to a channel as little-endian floats, straight from off-heap memory.
+     *
+     * @param channel
+     * @throws IOException
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException
+    {
+        if ( floatsInBufferCount == 0 ) {
+            return;
+        }
+        final ByteBuffer view = bytes.duplicate();
+        view.position( 0 ).limit( floatsInBufferCount * 4 );
+        while ( view.hasRemaining() ) {
+            channel.write( view );
+        }
+    }
+
+    /**
+     * Returns whether this buffer wraps read-only memory (see {@link #wrap(ByteBuffer)}).
+     *
+     * @return
+     */
+    public boolean isReadOnly() {
+        return buffer.isReadOnly();
     }
 
     public int capacity() {
@@ -23,35 +80,99 @@ public class MyFloatBuffer
 
     public void clear() {
         this.buffer.clear();
+        this.floatsInBufferCount = 0;
     }
 
     public int size() {
         return floatsInBufferCount;
     }
 
+    /**
+     * Returns the number of off-heap bytes allocated by this buffer.
+     *
+     * @return
+     */
+    public long sizeInBytes() {
+        return buffer.capacity() * 4L;
+    }
+
+    /**
+     * Drops the off-heap memory of this buffer, leaving it empty.
+     *
+     * The memory gets reclaimed by the garbage collector once no other references to it are left
+     * (there is no supported way to release direct memory explicitly), so other buffers sharing it stay valid.
+     */
+    public void free()
+    {
+        bytes = null;
+        buffer = FloatBuffer.allocate( 0 );
+        floatsInBufferCount = 0;
+    }
+
+    /**
+     * Creates an empty buffer that stores its contents in memory taken from another buffer (see {@link #detach()}).
+     *
+     * The buffer grows into newly allocated memory once the given memory is full.
+     *
+     * @param bytes
+     * @return
+     */
+    public static MyFloatBuffer reuse(ByteBuffer bytes)
+    {
+        if ( ! bytes.isDirect() || bytes.isReadOnly() ) {
+            throw new IllegalArgumentException( "Buffer must be direct and writable" );
+        }
+        final MyFloatBuffer result = new MyFloatBuffer( bytes.clear() );
+        result.clear();
+        return result;
+    }
+
+    /**
+     * Takes the off-heap memory out of this buffer so it can be reused (see {@link #reuse(ByteBuffer)}), leaving this buffer empty.
+     *
+     * @return memory or <code>null</code> if this buffer holds no memory that could be written to
+     */
+    public ByteBuffer detach()
+    {
+        final ByteBuffer result = bytes == null || bytes.isReadOnly() ? null : bytes;
+        free();
+        return result;
+    }
+
     public void shrinkToSize(int size)
     {
-        final FloatBuffer newBuffer = createOffHeapFloatBuffer( size );
+        final ByteBuffer newBytes = allocateOffHeap( size );
+        final FloatBuffer newBuffer = newBytes.asFloatBuffer();
         newBuffer.put( 0 , buffer , 0 , size );
+        bytes = newBytes;
         buffer = newBuffer;
         this.floatsInBufferCount = size;
     }
 
-    private static FloatBuffer createOffHeapFloatBuffer(int floatCount) {
-        final ByteBuffer bb = ByteBuffer.allocateDirect( floatCount * 4 );
-        return bb.asFloatBuffer();
+    private static ByteBuffer allocateOffHeap(int floatCount) {
+        return ByteBuffer.allocateDirect( floatCount * 4 ).order( ByteOrder.LITTLE_ENDIAN );
     }
 
     public void assertCapacity(int requiredSize)
     {
         if ( requiredSize > buffer.capacity() ) {
-            final FloatBuffer newBuffer = createOffHeapFloatBuffer( (int) Math.ceil( Math.max( requiredSize , floatsInBufferCount*1.5f ) ) );
+            final ByteBuffer newBytes = allocateOffHeap( (int) Math.ceil( Math.max( requiredSize , floatsInBufferCount*1.5f ) ) );
+            final FloatBuffer newBuffer = newBytes.asFloatBuffer();
             newBuffer.put( 0 , buffer , 0 , floatsInBufferCount );
+            bytes = newBytes;
             buffer = newBuffer;
             buffer.position( this.floatsInBufferCount );
         }
     }
 
+    public void append(float x, float y)
+    {
+        assertCapacity( floatsInBufferCount + 2 );
+        buffer.put( x );
+        buffer.put( y );
+        floatsInBufferCount += 2;
+    }
+
     public void append(float x1, float y1, float x2, float y2) {
 
         assertCapacity( floatsInBufferCount + 4 );
@@ -63,6 +184,66 @@ public class MyFloatBuffer
         floatsInBufferCount += 4;
     }
 
+    /**
+     * Changes the number of floats in this buffer, growing it if necessary.
+     *
+     * Floats added this way are undefined until written using {@link #put(int, float, float, float, float)}.
+     *
+     * @param newSize
+     */
+    public void setSize(int newSize)
+    {
+        assertCapacity( newSize );
+        floatsInBufferCount = newSize;
+        buffer.position( newSize );
+    }
+
+    /**
+     * Writes four floats at an absolute index, without changing the buffer's size.
+     *
+     * Concurrent writes to disjoint ranges are safe.
+     *
+     * @param index
+     * @param x1
+     * @param y1
+     * @param x2
+     * @param y2
+     */
+    public void put(int index, float x1, float y1, float x2, float y2)
+    {
+        buffer.put( index, x1 );
+        buffer.put( index + 1, y1 );
+        buffer.put( index + 2, x2 );
+        buffer.put( index + 3, y2 );
+    }
+
+    /**
+     * Writes two floats at an absolute index, without changing the buffer's size.
+     *
+     * @param index
+     * @param x
+     * @param y
+     */
+    public void put(int index, float x, float y)
+    {
+        buffer.put( index, x );
+        buffer.put( index + 1, y );
+    }
+
+    public float get(int index) {
+        return buffer.get( index );
+    }
+
+    /**
+     * Reads four floats at an absolute index.
+     *
+     * @param index
+     * @param destination array to store the floats in
+     */
+    public void get(int index, float[] destination) {
+        buffer.get( index, destination, 0, 4 );
+    }
+
     public void visit(LineBuffer.Visitor visitor) {
 
         final float[] tmp = new float[4];